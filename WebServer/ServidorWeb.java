@@ -1,8 +1,38 @@
 import java.io.*;
 import java.net.*;
 import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
+import java.util.stream.Stream;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.GZIPOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.DirectoryStream;
 import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
 
 /**
  * Clase principal del servidor web que escucha en un puerto
@@ -13,240 +43,5103 @@ import java.nio.file.Paths;
 public final class ServidorWeb {
 
     public static void main(String argv[]) throws Exception {
-        // Establece el número de puerto.
-        int puerto = 6789;
+        // Lee las opciones de arranque (--clave=valor).
+        ServerConfig config = ServerConfig.fromArgs(argv);
 
-        // Estableciendo el socket de escucha.
-        ServerSocket socketDeEscucha = new ServerSocket(puerto);
-        System.out.println("Servidor Web Segmentado iniciado en el puerto: " + puerto);
+        // Crea el motor de servidor configurado (bloqueante o NIO) y lo pone a atender.
+        ServerEngine motor = ServerEngine.create(config);
+        StatsReporter.start(config.getStatsIntervalSeconds());
+        motor.serve();
+    }
+}
+
+/**
+ * Clase que reúne las opciones de arranque del servidor.
+ * Las opciones se pasan como argumentos con la forma --clave=valor;
+ * cualquier opción desconocida o mal formada detiene el arranque.
+ */
+final class ServerConfig {
+    private static final Set<String> KNOWN_OPTIONS = new HashSet<>(Arrays.asList(
+            "puerto", "motor", "oyentes", "reactores", "asignacion", "modo", "hilos", "cola", "rechazo", "estadisticas",
+            "keepalive", "inactividad", "max-solicitudes", "registro", "envio", "mmap-max-mb",
+            "cache-mb", "cache-archivo-max-kb", "cache-revalidar-ms", "cache-respuesta-max-kb",
+            "offheap-mb", "cache-politica", "cache-404", "cache-404-ms", "indice", "mime",
+            "compresion", "compresion-min", "compresion-cache-mb", "precomprimidos"));
+
+    private final Map<String, String> options;
+
+    private ServerConfig(Map<String, String> options) {
+        this.options = options;
+    }
+
+    public static ServerConfig fromArgs(String[] args) {
+        Map<String, String> options = new HashMap<>();
+        for (String arg : args) {
+            int eq = arg.indexOf('=');
+            if (!arg.startsWith("--") || eq < 0) {
+                throw new IllegalArgumentException("Argumento mal formado (se espera --clave=valor): " + arg);
+            }
+            String key = arg.substring(2, eq);
+            if (!KNOWN_OPTIONS.contains(key)) {
+                throw new IllegalArgumentException("Opción no reconocida: --" + key);
+            }
+            options.put(key, arg.substring(eq + 1));
+        }
+        return new ServerConfig(options);
+    }
+
+    public int getPort() {
+        return getInt("puerto", 6789);
+    }
+
+    /**
+     * Motor de E/S: "bloqueante" (un hilo por conexión activa), "nio" (un Selector)
+     * "multi" (un hilo aceptador y varios ciclos de eventos), "async" (NIO.2 con completion handlers)
+     * o "reuseport" (varios sockets de escucha en el mismo puerto con SO_REUSEPORT).
+     */
+    public String getEngine() {
+        return getChoice("motor", "bloqueante", "bloqueante", "nio", "multi", "async", "reuseport");
+    }
+
+    /** Sockets de escucha del motor "reuseport"; por defecto uno por núcleo. */
+    public int getListenerCount() {
+        return getInt("oyentes", Runtime.getRuntime().availableProcessors());
+    }
+
+    /** Hilos del AsynchronousChannelGroup del motor "async"; por defecto uno por núcleo. */
+    public int getAsyncGroupThreads() {
+        return getInt("hilos", Runtime.getRuntime().availableProcessors());
+    }
+
+    /** Cantidad de ciclos de eventos del motor "multi"; por defecto uno por núcleo. */
+    public int getReactorCount() {
+        return getInt("reactores", Runtime.getRuntime().availableProcessors());
+    }
+
+    /** Cómo reparte el aceptador las conexiones: "rr" (turno rotativo) o "menor-carga". */
+    public String getReactorAssignment() {
+        return getChoice("asignacion", "rr", "rr", "menor-carga");
+    }
+
+    /** Modo de despacho de conexiones: "hilo" (un hilo por conexión), "pool" o "virtual". */
+    public String getDispatchMode() {
+        return getChoice("modo", "hilo", "hilo", "pool", "virtual");
+    }
+
+    public int getWorkerThreads() {
+        return getInt("hilos", Runtime.getRuntime().availableProcessors() * 4);
+    }
+
+    public int getQueueCapacity() {
+        return getInt("cola", 256);
+    }
+
+    /** Política ante un pool saturado: "rechazar" (503), "llamador" o "descartar". */
+    public String getRejectionPolicy() {
+        return getChoice("rechazo", "rechazar", "rechazar", "llamador", "descartar");
+    }
+
+    /** Si las conexiones HTTP/1.1 persisten entre solicitudes ("si" o "no"). */
+    public boolean isKeepAliveEnabled() {
+        return getChoice("keepalive", "si", "si", "no").equals("si");
+    }
+
+    /** Segundos que una conexión persistente puede quedar inactiva; 0 = sin límite. */
+    public int getIdleTimeoutSeconds() {
+        return getInt("inactividad", 15);
+    }
+
+    /** Máximo de solicitudes atendidas por una misma conexión. */
+    public int getMaxRequestsPerConnection() {
+        return getInt("max-solicitudes", 100);
+    }
+
+    /**
+     * Cómo se envía el cuerpo de los archivos: "copia" (se lee al heap y se escribe),
+     * "sendfile" (FileChannel.transferTo, del archivo al socket sin pasar por el heap)
+     * o "mmap" (archivos mapeados en memoria y compartidos entre solicitudes).
+     */
+    public String getFileTransferMode() {
+        return getChoice("envio", "copia", "copia", "sendfile", "mmap");
+    }
+
+    /** Máximo de bytes mapeados a la vez en el modo "mmap". */
+    public long getMappedBytesBudget() {
+        return getInt("mmap-max-mb", 256) * 1024L * 1024L;
+    }
+
+    /** Presupuesto en bytes de la caché de contenido de archivos; 0 la desactiva. */
+    public long getFileCacheBudget() {
+        return getInt("cache-mb", 0) * 1024L * 1024L;
+    }
+
+    /** Tamaño máximo de un archivo para entrar en la caché de contenido. */
+    public long getFileCacheMaxFileBytes() {
+        return getInt("cache-archivo-max-kb", 1024) * 1024L;
+    }
+
+    /**
+     * Política de admisión de la caché de contenido: "tinylfu" (por defecto) solo deja
+     * entrar un archivo si se pidió más que el que desalojaría; "lru" admite todo.
+     */
+    public String getFileCachePolicy() {
+        return getChoice("cache-politica", "tinylfu", "tinylfu", "lru");
+    }
+
+    /**
+     * Presupuesto en bytes del nivel de la caché fuera del heap (buffers directos); 0 lo
+     * desactiva. Se redondea hacia abajo a bloques de 1 MB.
+     */
+    public long getOffHeapCacheBudget() {
+        return getInt("offheap-mb", 0) * 1024L * 1024L;
+    }
+
+    /** Cada cuántos milisegundos, como máximo, se verifica si un archivo cacheado cambió. */
+    public int getFileCacheRevalidateMillis() {
+        return getInt("cache-revalidar-ms", 1000);
+    }
+
+    /**
+     * Si la raíz de documentos se indexa en memoria al arrancar (y se mantiene al día con
+     * un WatchService) para resolver las rutas sin consultar el disco.
+     */
+    public boolean isDocumentIndexEnabled() {
+        return getChoice("indice", "no", "si", "no").equals("si");
+    }
+
+    /** Archivo con los tipos de contenido por extensión (formato mime.types). */
+    public String getMimeTypesFile() {
+        return getString("mime", "mime.types");
+    }
+
+    /** Si las respuestas de tipos comprimibles se comprimen (gzip/deflate) según Accept-Encoding. */
+    public boolean isCompressionEnabled() {
+        return getChoice("compresion", "no", "si", "no").equals("si");
+    }
+
+    /** Tamaño mínimo en bytes de un archivo para comprimirlo. */
+    public int getCompressionMinBytes() {
+        return getInt("compresion-min", 1024);
+    }
+
+    /** Presupuesto en bytes de la caché de variantes comprimidas. */
+    public long getCompressionCacheBudget() {
+        return getInt("compresion-cache-mb", 16) * 1024L * 1024L;
+    }
+
+    /** Si se envían los "archivo.gz" que acompañan a los originales a los clientes que aceptan gzip. */
+    public boolean isPrecompressedEnabled() {
+        return getChoice("precomprimidos", "no", "si", "no").equals("si");
+    }
+
+    /** Rutas inexistentes que recuerda la caché de 404; 0 la desactiva. */
+    public int getNotFoundCacheEntries() {
+        return getInt("cache-404", 0);
+    }
+
+    /** Milisegundos que una ruta inexistente queda en la caché de 404. */
+    public int getNotFoundCacheTtlMillis() {
+        return getInt("cache-404-ms", 5000);
+    }
+
+    /**
+     * Archivos cacheados de hasta este tamaño se guardan también como respuestas
+     * completas ya serializadas; 0 lo desactiva.
+     */
+    public int getPrebuiltResponseMaxBytes() {
+        return getInt("cache-respuesta-max-kb", 16) * 1024;
+    }
+
+    /** Si cada solicitud recibida se imprime en consola (Parte I); "no" lo desactiva para pruebas de carga. */
+    public boolean isRequestLoggingEnabled() {
+        return getChoice("registro", "si", "si", "no").equals("si");
+    }
+
+    /** Intervalo en segundos entre reportes de estadísticas; 0 los desactiva. */
+    public int getStatsIntervalSeconds() {
+        return getInt("estadisticas", 0);
+    }
+
+    public String getString(String key, String defaultValue) {
+        return options.getOrDefault(key, defaultValue);
+    }
+
+    public int getInt(String key, int defaultValue) {
+        String value = options.get(key);
+        if (value == null) {
+            return defaultValue;
+        }
+        try {
+            int parsed = Integer.parseInt(value);
+            if (parsed < 0) {
+                throw new IllegalArgumentException("La opción --" + key + " no admite valores negativos: " + value);
+            }
+            return parsed;
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("La opción --" + key + " espera un número entero: " + value);
+        }
+    }
+
+    public String getChoice(String key, String defaultValue, String... allowed) {
+        String value = options.getOrDefault(key, defaultValue);
+        for (String candidate : allowed) {
+            if (candidate.equals(value)) {
+                return value;
+            }
+        }
+        throw new IllegalArgumentException("Valor inválido para --" + key + ": " + value
+                + " (valores permitidos: " + String.join(", ", allowed) + ")");
+    }
+}
+
+/**
+ * Motor de servidor: abre el socket de escucha y atiende las conexiones
+ * con su propio modelo de E/S. Todos comparten HttpRequestProcessor.
+ */
+interface ServerEngine {
+
+    void serve() throws IOException;
+
+    static ServerEngine create(ServerConfig config) throws IOException {
+        // El vigilante de la raíz de documentos solo se arranca si algún componente lo usa.
+        Path documentRoot = Paths.get(".");
+        MimeTypeRegistry mimeTypes = MimeTypeRegistry.load(Paths.get(config.getMimeTypesFile()));
+        DocumentRootWatcher watcher = config.getNotFoundCacheEntries() > 0 || config.isDocumentIndexEnabled()
+                ? DocumentRootWatcher.start(documentRoot) : null;
+        // El índice se registra antes que la caché de 404: se actualiza antes de que ella se vacíe.
+        DocumentRootIndex documentIndex = null;
+        if (config.isDocumentIndexEnabled()) {
+            documentIndex = DocumentRootIndex.build(documentRoot, mimeTypes, config.isPrecompressedEnabled());
+            watcher.addListener(documentIndex::pathChanged);
+            StatsReporter.register("indice", documentIndex::stats);
+        }
+        HttpRequestProcessor processor = new HttpRequestProcessor(new KeepAlivePolicy(config.isKeepAliveEnabled(),
+                config.getIdleTimeoutSeconds() * 1000, config.getMaxRequestsPerConnection()),
+                config.isRequestLoggingEnabled(), createFileHandler(config, mimeTypes), documentIndex,
+                createNotFoundCache(config, watcher));
+        StatsReporter.register("escrituras", OutputQueue::stats);
+        if (config.getEngine().equals("nio")) {
+            return new NioServerEngine(config.getPort(), processor);
+        }
+        if (config.getEngine().equals("multi")) {
+            return new MultiReactorServerEngine(config.getPort(), config.getReactorCount(),
+                    config.getReactorAssignment(), processor);
+        }
+        if (config.getEngine().equals("async")) {
+            return new AsyncServerEngine(config.getPort(), config.getAsyncGroupThreads(), processor);
+        }
+        if (config.getEngine().equals("reuseport")) {
+            return new ReusePortServerEngine(config.getPort(), config.getListenerCount(),
+                    ConnectionDispatcher.create(config), processor);
+        }
+        return new BlockingServerEngine(config.getPort(), ConnectionDispatcher.create(config), processor);
+    }
+
+    private static NotFoundCache createNotFoundCache(ServerConfig config, DocumentRootWatcher watcher) {
+        if (config.getNotFoundCacheEntries() == 0) {
+            return null;
+        }
+        NotFoundCache notFoundCache = new NotFoundCache(config.getNotFoundCacheEntries(),
+                config.getNotFoundCacheTtlMillis());
+        watcher.addListener(notFoundCache::pathChanged);
+        StatsReporter.register("cache-404", notFoundCache::stats);
+        return notFoundCache;
+    }
+
+    private static HttpFileHandler createFileHandler(ServerConfig config, MimeTypeRegistry mimeTypes) {
+        MappedFileCache mappedFiles = null;
+        if (config.getFileTransferMode().equals("mmap")) {
+            mappedFiles = new MappedFileCache(config.getMappedBytesBudget());
+            StatsReporter.register("mmap", mappedFiles::stats);
+        }
+        StaticFileCache fileCache = null;
+        if (config.getFileCacheBudget() > 0) {
+            fileCache = new StaticFileCache(config.getFileCacheBudget(), config.getFileCacheMaxFileBytes(),
+                    config.getFileCacheRevalidateMillis(), CachePolicy.create(config.getFileCachePolicy(),
+                            StaticFileCache.expectedEntries(config.getFileCacheBudget())));
+            StatsReporter.register("cache", fileCache::stats);
+        }
+        OffHeapFileCache offHeapCache = null;
+        if (config.getOffHeapCacheBudget() > 0) {
+            offHeapCache = new OffHeapFileCache(new SlabAllocator(config.getOffHeapCacheBudget()),
+                    config.getFileCacheRevalidateMillis());
+            StatsReporter.register("offheap", offHeapCache::stats);
+        }
+        CompressedVariantCache compression = null;
+        if (config.isCompressionEnabled()) {
+            compression = new CompressedVariantCache(config.getCompressionMinBytes(),
+                    config.getCompressionCacheBudget());
+            StatsReporter.register("compresion", compression::stats);
+        }
+        HttpFileHandler fileHandler = new HttpFileHandler(config.getFileTransferMode(), mimeTypes, mappedFiles,
+                fileCache, offHeapCache, compression, config.isPrecompressedEnabled(),
+                config.getFileCacheRevalidateMillis(), config.getPrebuiltResponseMaxBytes());
+        if (fileCache != null) {
+            StatsReporter.register("respuestas-precalculadas", fileHandler::prebuiltStats);
+        }
+        StatsReporter.register("condicionales", fileHandler::conditionalStats);
+        if (config.isPrecompressedEnabled()) {
+            StatsReporter.register("precomprimidos", fileHandler::precompressedStats);
+        }
+        return fileHandler;
+    }
+}
+
+/**
+ * Motor original: un ServerSocket bloqueante cuyo accept entrega cada conexión
+ * a un ClientRequestHandler mediante el despachador configurado.
+ */
+class BlockingServerEngine implements ServerEngine {
+    private final int port;
+    private final ConnectionDispatcher dispatcher;
+    private final HttpRequestProcessor processor;
+
+    public BlockingServerEngine(int port, ConnectionDispatcher dispatcher, HttpRequestProcessor processor) {
+        this.port = port;
+        this.dispatcher = dispatcher;
+        this.processor = processor;
+    }
+
+    @Override
+    public void serve() throws IOException {
+        // Estableciendo el socket de escucha. Se abre como canal (en modo bloqueante)
+        // para que cada conexión pueda enviar sus respuestas con escrituras gather.
+        ServerSocketChannel socketDeEscucha = ServerSocketChannel.open();
+        socketDeEscucha.bind(new InetSocketAddress(port), 1024);
+        System.out.println("Servidor Web Segmentado iniciado en el puerto: " + port);
+        System.out.println("Modo de despacho: " + dispatcher.describe());
+
+        // Procesando las solicitudes HTTP en un ciclo infinito.
+        while (true) {
+            // Escuchando las solicitudes de conexión TCP.
+            SocketChannel socketDeConexion = socketDeEscucha.accept();
+
+            // Construye un objeto para procesar el mensaje de solicitud HTTP.
+            ClientRequestHandler requestHandler = new ClientRequestHandler(socketDeConexion, processor);
+
+            // Entrega la conexión al despachador (hilo nuevo, pool acotado o hilo virtual).
+            dispatcher.dispatch(requestHandler);
+        }
+    }
+}
+
+/**
+ * Motor bloqueante con varios sockets de escucha enlazados al mismo puerto con
+ * SO_REUSEPORT (Linux 3.9+), cada uno con su propio hilo de accept. El kernel reparte
+ * las conexiones nuevas entre los sockets, así el accept deja de ser un único punto
+ * de serialización. Varias JVM arrancadas con este motor pueden compartir el puerto.
+ */
+class ReusePortServerEngine implements ServerEngine {
+    private final int port;
+    private final int listenerCount;
+    private final ConnectionDispatcher dispatcher;
+    private final HttpRequestProcessor processor;
+
+    public ReusePortServerEngine(int port, int listenerCount, ConnectionDispatcher dispatcher,
+                                 HttpRequestProcessor processor) {
+        if (listenerCount < 1) {
+            throw new IllegalArgumentException("El motor reuseport necesita al menos un socket de escucha.");
+        }
+        this.port = port;
+        this.listenerCount = listenerCount;
+        this.dispatcher = dispatcher;
+        this.processor = processor;
+    }
+
+    @Override
+    public void serve() throws IOException {
+        List<ServerSocketChannel> listeners = new ArrayList<>();
+        for (int i = 0; i < listenerCount; i++) {
+            ServerSocketChannel listener = ServerSocketChannel.open();
+            if (!listener.supportedOptions().contains(StandardSocketOptions.SO_REUSEPORT)) {
+                listener.close();
+                throw new IOException("SO_REUSEPORT no está disponible en esta plataforma.");
+            }
+            listener.setOption(StandardSocketOptions.SO_REUSEPORT, true);
+            try {
+                listener.bind(new InetSocketAddress(port), 1024);
+                listeners.add(listener);
+            } catch (IOException e) {
+                System.err.println("No se pudo enlazar el oyente " + i + ": " + e.getMessage());
+                listener.close();
+            }
+        }
+        if (listeners.isEmpty()) {
+            throw new IOException("Ningún socket de escucha pudo enlazarse al puerto " + port);
+        }
+        System.out.println("Servidor Web Segmentado (SO_REUSEPORT, " + listeners.size() + " de " + listenerCount
+                + " oyentes enlazados) iniciado en el puerto: " + port);
+        System.out.println("Modo de despacho: " + dispatcher.describe());
+
+        Thread[] acceptors = new Thread[listeners.size()];
+        for (int i = 0; i < acceptors.length; i++) {
+            String name = "oyente-" + i;
+            Listener listener = new Listener(listeners.get(i));
+            StatsReporter.register(name, listener::stats);
+            acceptors[i] = new Thread(listener, name);
+            acceptors[i].start();
+        }
+        for (Thread acceptor : acceptors) {
+            try {
+                acceptor.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
+    }
+
+    /**
+     * Ciclo de accept de un socket de escucha, con su contador de conexiones aceptadas.
+     */
+    private class Listener implements Runnable {
+        private final ServerSocketChannel channel;
+        private final AtomicLong accepted = new AtomicLong();
+        // Estado del último reporte, para calcular la tasa de accept entre reportes.
+        private long lastReportedCount;
+        private long lastReportNanos = System.nanoTime();
+
+        Listener(ServerSocketChannel channel) {
+            this.channel = channel;
+        }
+
+        @Override
+        public void run() {
+            while (channel.isOpen()) {
+                try {
+                    SocketChannel client = channel.accept();
+                    accepted.incrementAndGet();
+                    dispatcher.dispatch(new ClientRequestHandler(client, processor));
+                } catch (IOException e) {
+                    System.err.println("Error al aceptar la conexión: " + e.getMessage());
+                }
+            }
+        }
+
+        synchronized String stats() {
+            long now = System.nanoTime();
+            long count = accepted.get();
+            double seconds = (now - lastReportNanos) / 1e9;
+            double rate = seconds > 0 ? (count - lastReportedCount) / seconds : 0;
+            lastReportedCount = count;
+            lastReportNanos = now;
+            return "aceptadas=" + count + " tasa=" + String.format("%.1f", rate) + "/s";
+        }
+    }
+}
+
+/**
+ * Motor no bloqueante: un único hilo con un Selector acepta, lee y escribe
+ * todas las conexiones, de modo que las conexiones inactivas no ocupan hilos.
+ */
+class NioServerEngine implements ServerEngine {
+    private final int port;
+    private final HttpRequestProcessor processor;
+
+    public NioServerEngine(int port, HttpRequestProcessor processor) {
+        this.port = port;
+        this.processor = processor;
+    }
+
+    @Override
+    public void serve() throws IOException {
+        ServerSocketChannel serverChannel = ServerSocketChannel.open();
+        serverChannel.bind(new InetSocketAddress(port), 1024);
+        System.out.println("Servidor Web Segmentado (NIO) iniciado en el puerto: " + port);
+
+        NioEventLoop loop = new NioEventLoop("nio", processor);
+        StatsReporter.register("nio", loop::stats);
+        loop.listen(serverChannel);
+        loop.run();
+    }
+}
+
+/**
+ * Motor multi-reactor: un hilo aceptador reparte las conexiones entre N ciclos
+ * de eventos, cada uno con su propio Selector e hilo. Cada conexión pertenece a un
+ * único ciclo durante toda su vida, así que el camino caliente no comparte locks.
+ */
+class MultiReactorServerEngine implements ServerEngine {
+    private final int port;
+    private final int reactorCount;
+    private final String assignment;
+    private final HttpRequestProcessor processor;
+
+    public MultiReactorServerEngine(int port, int reactorCount, String assignment, HttpRequestProcessor processor) {
+        if (reactorCount < 1) {
+            throw new IllegalArgumentException("El motor multi necesita al menos un ciclo de eventos.");
+        }
+        this.port = port;
+        this.reactorCount = reactorCount;
+        this.assignment = assignment;
+        this.processor = processor;
+    }
+
+    @Override
+    public void serve() throws IOException {
+        NioEventLoop[] loops = new NioEventLoop[reactorCount];
+        for (int i = 0; i < reactorCount; i++) {
+            String name = "reactor-" + i;
+            loops[i] = new NioEventLoop(name, processor);
+            StatsReporter.register(name, loops[i]::stats);
+            new Thread(loops[i], name).start();
+        }
+
+        // El aceptador queda en modo bloqueante: es el único hilo que llama a accept.
+        ServerSocketChannel serverChannel = ServerSocketChannel.open();
+        serverChannel.bind(new InetSocketAddress(port), 1024);
+        System.out.println("Servidor Web Segmentado (multi-reactor, " + reactorCount + " ciclos, asignación "
+                + assignment + ") iniciado en el puerto: " + port);
+
+        int next = 0;
+        while (true) {
+            SocketChannel client = serverChannel.accept();
+            NioEventLoop target;
+            if (assignment.equals("menor-carga")) {
+                target = loops[0];
+                for (NioEventLoop loop : loops) {
+                    if (loop.openConnections() < target.openConnections()) {
+                        target = loop;
+                    }
+                }
+            } else {
+                target = loops[next];
+                next = (next + 1) % loops.length;
+            }
+            target.register(client);
+        }
+    }
+}
+
+/**
+ * Motor proactor sobre NIO.2: AsynchronousServerSocketChannel dentro de un
+ * AsynchronousChannelGroup de tamaño fijo. No hay un hilo por conexión ni un ciclo
+ * propio: el sistema completa cada accept, lectura o escritura y el grupo ejecuta
+ * el completion handler que encadena el siguiente paso.
+ */
+class AsyncServerEngine implements ServerEngine {
+    private final int port;
+    private final int groupThreads;
+    private final HttpRequestProcessor processor;
+    private final LongAdder acceptedConnections = new LongAdder();
+    private final LongAdder servedRequests = new LongAdder();
+
+    public AsyncServerEngine(int port, int groupThreads, HttpRequestProcessor processor) {
+        if (groupThreads < 1) {
+            throw new IllegalArgumentException("El motor async necesita al menos un hilo en el grupo.");
+        }
+        this.port = port;
+        this.groupThreads = groupThreads;
+        this.processor = processor;
+    }
+
+    @Override
+    public void serve() throws IOException {
+        AtomicInteger counter = new AtomicInteger();
+        AsynchronousChannelGroup group = AsynchronousChannelGroup.withFixedThreadPool(groupThreads,
+                r -> new Thread(r, "async-" + counter.incrementAndGet()));
+        AsynchronousServerSocketChannel serverChannel = AsynchronousServerSocketChannel.open(group);
+        serverChannel.bind(new InetSocketAddress(port), 1024);
+        System.out.println("Servidor Web Segmentado (NIO.2 async, " + groupThreads
+                + " hilos) iniciado en el puerto: " + port);
+        StatsReporter.register("async", () -> "aceptadas=" + acceptedConnections.sum()
+                + " solicitudes=" + servedRequests.sum());
+
+        serverChannel.accept(null, new CompletionHandler<AsynchronousSocketChannel, Void>() {
+            @Override
+            public void completed(AsynchronousSocketChannel client, Void attachment) {
+                serverChannel.accept(null, this); // Rearmar el accept antes de atender
+                acceptedConnections.increment();
+                new AsyncConnection(client, processor, servedRequests).start();
+            }
+
+            @Override
+            public void failed(Throwable e, Void attachment) {
+                System.err.println("Error al aceptar la conexión: " + e.getMessage());
+                if (serverChannel.isOpen()) {
+                    serverChannel.accept(null, this);
+                }
+            }
+        });
+
+        try {
+            group.awaitTermination(Long.MAX_VALUE, TimeUnit.DAYS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
+
+/**
+ * Conexión del motor async: cada paso (leer, parsear, escribir) se dispara desde
+ * el completion handler del paso anterior.
+ */
+class AsyncConnection {
+    private static final int READ_BUFFER_SIZE = 16 * 1024;
+
+    private static final CompletionHandler<Integer, AsyncConnection> READ_COMPLETED = new CompletionHandler<>() {
+        @Override
+        public void completed(Integer bytesRead, AsyncConnection connection) {
+            connection.onRead(bytesRead);
+        }
+
+        @Override
+        public void failed(Throwable e, AsyncConnection connection) {
+            connection.fail(e);
+        }
+    };
+
+    private static final CompletionHandler<Long, AsyncConnection> WRITE_COMPLETED = new CompletionHandler<>() {
+        @Override
+        public void completed(Long bytesWritten, AsyncConnection connection) {
+            OutputQueue.recordWrite(bytesWritten);
+            connection.onWrite();
+        }
+
+        @Override
+        public void failed(Throwable e, AsyncConnection connection) {
+            connection.fail(e);
+        }
+    };
+
+    private final AsynchronousSocketChannel channel;
+    private final HttpRequestProcessor processor;
+    private final LongAdder servedRequests;
+    private final ByteBuffer input = ByteBuffer.allocate(READ_BUFFER_SIZE);
+    private final OutputQueue responses = new OutputQueue();
+    // Buffer para copiar los archivos: AsynchronousSocketChannel no admite transferTo.
+    private ByteBuffer fileBuffer;
+    private ByteBuffer[] output;
+    private int outputIndex;
+    private boolean keepAlive;
+    private int requestCount;
+
+    AsyncConnection(AsynchronousSocketChannel channel, HttpRequestProcessor processor, LongAdder servedRequests) {
+        this.channel = channel;
+        this.processor = processor;
+        this.servedRequests = servedRequests;
+    }
+
+    void start() {
+        readMore();
+    }
+
+    private void readMore() {
+        int idleTimeout = processor.getKeepAlivePolicy().getIdleTimeoutMillis();
+        if (idleTimeout > 0) {
+            channel.read(input, idleTimeout, TimeUnit.MILLISECONDS, this, READ_COMPLETED);
+        } else {
+            channel.read(input, this, READ_COMPLETED);
+        }
+    }
+
+    private void onRead(int bytesRead) {
+        if (bytesRead < 0) {
+            close(); // El cliente cerró la conexión
+            return;
+        }
+        serveBuffered();
+    }
+
+    /**
+     * Atiende las solicitudes completas del buffer (pipelining), hasta los límites de
+     * tanda de OutputQueue, y envía sus respuestas juntas; si no hay ninguna, sigue
+     * leyendo. No se lee del socket mientras haya respuestas sin escribir.
+     */
+    private void serveBuffered() {
+        try {
+            keepAlive = true;
+            int batched = 0;
+            while (keepAlive) {
+                input.flip();
+                HttpRequest request = HttpRequest.parse(input);
+                if (request == null) {
+                    input.compact();
+                    break; // Encabezados incompletos
+                }
+                keepAlive = processor.process(request, new HttpResponse(responses), requestCount++);
+                input.compact(); // Recién ahora: la solicitud apunta al buffer
+                servedRequests.increment();
+                if (responses.isBatchFull(++batched)) {
+                    break; // Tanda llena: se sigue del buffer cuando termine de escribirse
+                }
+            }
+            if (responses.isEmpty()) {
+                readMore();
+                return;
+            }
+            writeNext();
+        } catch (Exception e) {
+            fail(e);
+        }
+    }
+
+    // Envía el siguiente tramo de la cola: los buffers en memoria juntos o un bloque de archivo.
+    private void writeNext() throws IOException {
+        if (fileBuffer == null && responses.hasFileRegions()) {
+            fileBuffer = ByteBuffer.allocateDirect(OutputQueue.FILE_COPY_BUFFER_SIZE);
+        }
+        output = responses.takeForCopy(fileBuffer);
+        outputIndex = 0;
+        if (output.length > 0) {
+            writeOutput();
+        } else if (keepAlive) {
+            serveBuffered(); // Conexión persistente: siguiente solicitud
+        } else {
+            close();
+        }
+    }
+
+    // Con el mismo tiempo de inactividad que las lecturas: un cliente que deja de leer no
+    // retiene el socket ni los archivos abiertos de la cola.
+    private void writeOutput() {
+        int idleTimeout = processor.getKeepAlivePolicy().getIdleTimeoutMillis();
+        channel.write(output, outputIndex, output.length - outputIndex, Math.max(idleTimeout, 0),
+                TimeUnit.MILLISECONDS, this, WRITE_COMPLETED);
+    }
+
+    private void onWrite() {
+        while (outputIndex < output.length && !output[outputIndex].hasRemaining()) {
+            outputIndex++;
+        }
+        if (outputIndex < output.length) {
+            writeOutput(); // Escritura parcial: continuar
+            return;
+        }
+        try {
+            writeNext();
+        } catch (IOException e) {
+            fail(e);
+        }
+    }
+
+    private void fail(Throwable e) {
+        if (!(e instanceof InterruptedByTimeoutException)) {
+            System.err.println("Error al procesar la solicitud: " + e.getMessage());
+        }
+        close(); // Error o conexión inactiva por más tiempo que el permitido
+    }
+
+    private void close() {
+        responses.clear();
+        try {
+            channel.close();
+        } catch (IOException e) {
+            System.err.println("Error al cerrar el socket: " + e.getMessage());
+        }
+    }
+}
+
+/**
+ * Ciclo de eventos sobre un Selector. Lee los bytes de cada conexión de forma
+ * incremental, arma la solicitud con HttpRequest.parse cuando llegan los encabezados
+ * completos y escribe la respuesta a medida que el socket lo permite.
+ * La lectura del archivo sigue siendo bloqueante dentro del ciclo, lo que es aceptable
+ * para los archivos pequeños que este servidor entrega desde la caché del sistema.
+ */
+class NioEventLoop implements Runnable {
+    private static final int READ_BUFFER_SIZE = 16 * 1024;
+    private static final long IDLE_SWEEP_INTERVAL_MILLIS = 1000;
+
+    private final String name;
+    private final Selector selector;
+    private final HttpRequestProcessor processor;
+    // Buffer de lectura compartido por todas las conexiones del ciclo:
+    // una conexión inactiva no reserva memoria de lectura propia.
+    private final ByteBuffer readBuffer = ByteBuffer.allocateDirect(READ_BUFFER_SIZE);
+    // Conexiones entregadas por otro hilo (aceptador del motor multi) pendientes de registrar.
+    private final Queue<SocketChannel> registrations = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger openConnections = new AtomicInteger();
+    // Métricas escritas solo por el hilo del ciclo y leídas por el reporte de estadísticas.
+    private volatile long acceptedConnections;
+    private volatile long servedRequests;
+    private long lastIdleSweep = System.currentTimeMillis();
+
+    public NioEventLoop(String name, HttpRequestProcessor processor) throws IOException {
+        this.name = name;
+        this.selector = Selector.open();
+        this.processor = processor;
+    }
+
+    /**
+     * Entrega una conexión aceptada en otro hilo; el ciclo la registra en su Selector.
+     */
+    public void register(SocketChannel client) {
+        openConnections.incrementAndGet();
+        registrations.add(client);
+        selector.wakeup();
+    }
+
+    public int openConnections() {
+        return openConnections.get();
+    }
+
+    public String stats() {
+        return "conexiones=" + openConnections.get()
+                + " aceptadas=" + acceptedConnections
+                + " solicitudes=" + servedRequests;
+    }
+
+    public void listen(ServerSocketChannel serverChannel) throws IOException {
+        serverChannel.configureBlocking(false);
+        serverChannel.register(selector, SelectionKey.OP_ACCEPT);
+    }
+
+    @Override
+    public void run() {
+        while (true) {
+            try {
+                selector.select(IDLE_SWEEP_INTERVAL_MILLIS);
+            } catch (IOException e) {
+                System.err.println("Error en el selector " + name + ": " + e.getMessage());
+                return;
+            }
+            registerPending();
+            Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+            while (keys.hasNext()) {
+                SelectionKey key = keys.next();
+                keys.remove();
+                if (!key.isValid()) {
+                    continue;
+                }
+                if (key.isAcceptable()) {
+                    accept((ServerSocketChannel) key.channel());
+                    continue;
+                }
+                NioConnection connection = (NioConnection) key.attachment();
+                try {
+                    if (key.isReadable()) {
+                        read(key, connection);
+                    }
+                    if (key.isValid() && key.isWritable()) {
+                        write(key, connection);
+                    }
+                } catch (Exception e) {
+                    System.err.println("Error al procesar la solicitud: " + e.getMessage());
+                    close(key);
+                }
+            }
+            closeIdleConnections();
+        }
+    }
+
+    // Cierra las conexiones que superaron el tiempo de inactividad, también las que tienen
+    // respuestas pendientes: cada escritura renueva lastActivity, así que solo caen los
+    // clientes que dejaron de leer.
+    private void closeIdleConnections() {
+        int idleTimeout = processor.getKeepAlivePolicy().getIdleTimeoutMillis();
+        long now = System.currentTimeMillis();
+        if (idleTimeout <= 0 || now - lastIdleSweep < IDLE_SWEEP_INTERVAL_MILLIS) {
+            return;
+        }
+        lastIdleSweep = now;
+        for (SelectionKey key : selector.keys()) {
+            if (key.isValid() && key.attachment() instanceof NioConnection connection
+                    && now - connection.lastActivity > idleTimeout) {
+                close(key);
+            }
+        }
+    }
+
+    private void accept(ServerSocketChannel serverChannel) {
+        try {
+            SocketChannel client;
+            while ((client = serverChannel.accept()) != null) {
+                openConnections.incrementAndGet();
+                attach(client);
+            }
+        } catch (IOException e) {
+            System.err.println("Error al aceptar la conexión: " + e.getMessage());
+        }
+    }
+
+    private void registerPending() {
+        SocketChannel client;
+        while ((client = registrations.poll()) != null) {
+            try {
+                attach(client);
+            } catch (IOException e) {
+                System.err.println("Error al registrar la conexión: " + e.getMessage());
+                openConnections.decrementAndGet();
+                try {
+                    client.close();
+                } catch (IOException ignored) {
+                    // La conexión ya está perdida
+                }
+            }
+        }
+    }
+
+    private void attach(SocketChannel client) throws IOException {
+        client.configureBlocking(false);
+        client.register(selector, SelectionKey.OP_READ, new NioConnection(client));
+        acceptedConnections++;
+    }
+
+    private void read(SelectionKey key, NioConnection connection) throws Exception {
+        readBuffer.clear();
+        if (connection.channel.read(readBuffer) < 0) {
+            close(key); // El cliente cerró la conexión
+            return;
+        }
+        readBuffer.flip();
+        connection.lastActivity = System.currentTimeMillis();
+        serve(key, connection, connection.append(readBuffer));
+    }
+
+    /**
+     * Atiende las solicitudes completas que haya en el buffer (pipelining), en orden, y
+     * después envía sus respuestas juntas con una escritura gather. Cada tanda tiene los
+     * límites de OutputQueue: al llenarse se escribe antes de seguir parseando. Si no se
+     * puede escribir entera, deja de leer (y de parsear) hasta que el socket se libere.
+     */
+    private void serve(SelectionKey key, NioConnection connection, ByteBuffer input) throws Exception {
+        while (true) {
+            boolean morePending = false;
+            int batched = 0;
+            while (input != null && !connection.closeAfterWrite) {
+                HttpRequest request = HttpRequest.parse(input);
+                if (request == null) {
+                    connection.retain(input);
+                    break; // Encabezados incompletos: esperar más bytes
+                }
+
+                boolean keepAlive = processor.process(request, new HttpResponse(connection.output),
+                        connection.requestCount++);
+                // Recién ahora se compactan los bytes restantes: la solicitud apunta al buffer.
+                connection.retain(input);
+                connection.closeAfterWrite = !keepAlive;
+                servedRequests++;
+                input = null;
+
+                if (!connection.closeAfterWrite) {
+                    if (connection.output.isBatchFull(++batched)) {
+                        morePending = true; // Lo que quede se parsea después de escribir
+                        break;
+                    }
+                    input = connection.pendingInput();
+                }
+            }
+            if (connection.output.isEmpty()) {
+                return;
+            }
+            if (!connection.flush()) {
+                key.interestOps(SelectionKey.OP_WRITE); // El socket está lleno: esperar
+                return;
+            }
+            if (connection.closeAfterWrite) {
+                close(key);
+                return;
+            }
+            if (!morePending) {
+                return;
+            }
+            input = connection.pendingInput();
+        }
+    }
+
+    private void write(SelectionKey key, NioConnection connection) throws Exception {
+        connection.lastActivity = System.currentTimeMillis();
+        if (!connection.flush()) {
+            return; // Sigue registrado para OP_WRITE
+        }
+        if (connection.closeAfterWrite) {
+            close(key);
+            return;
+        }
+        key.interestOps(SelectionKey.OP_READ);
+        serve(key, connection, connection.pendingInput());
+    }
+
+    private void close(SelectionKey key) {
+        if (!key.channel().isOpen()) {
+            return; // Ya cerrada
+        }
+        openConnections.decrementAndGet();
+        if (key.attachment() instanceof NioConnection connection) {
+            connection.output.clear(); // Libera los archivos que quedaron sin enviar
+        }
+        key.cancel();
+        try {
+            key.channel().close();
+        } catch (IOException e) {
+            System.err.println("Error al cerrar el socket: " + e.getMessage());
+        }
+    }
+}
+
+/**
+ * Estado de una conexión del motor NIO: bytes de una solicitud aún incompleta
+ * y la cola de buffers de respuesta pendientes de escribir.
+ */
+class NioConnection {
+    final SocketChannel channel;
+    final OutputQueue output = new OutputQueue();
+    boolean closeAfterWrite;
+    int requestCount;
+    long lastActivity = System.currentTimeMillis();
+    // Bytes recibidos que todavía no forman una solicitud (modo escritura); null si no hay.
+    private ByteBuffer pending;
+
+    NioConnection(SocketChannel channel) {
+        this.channel = channel;
+    }
+
+    /**
+     * Devuelve el buffer a parsear: el de lectura tal cual si no había bytes pendientes,
+     * o los pendientes con los nuevos bytes agregados al final.
+     */
+    ByteBuffer append(ByteBuffer data) {
+        if (pending == null) {
+            return data;
+        }
+        if (pending.remaining() < data.remaining()) {
+            ByteBuffer larger = ByteBuffer.allocate(Math.max(pending.capacity() * 2, pending.position() + data.remaining()));
+            pending.flip();
+            larger.put(pending);
+            pending = larger;
+        }
+        pending.put(data);
+        pending.flip();
+        return pending;
+    }
+
+    /**
+     * Bytes pendientes listos para parsear, o null si no hay ninguno.
+     */
+    ByteBuffer pendingInput() {
+        if (pending == null) {
+            return null;
+        }
+        pending.flip();
+        return pending;
+    }
+
+    /**
+     * Conserva los bytes que quedaron sin consumir después de parsear.
+     */
+    void retain(ByteBuffer input) {
+        if (!input.hasRemaining()) {
+            pending = null;
+        } else if (input == pending) {
+            pending.compact();
+        } else {
+            ByteBuffer copy = ByteBuffer.allocate(Math.max(input.remaining() * 2, 1024));
+            copy.put(input);
+            pending = copy;
+        }
+    }
+
+    /**
+     * Escribe con una sola llamada gather lo que el socket acepte de toda la cola;
+     * devuelve true si la cola quedó vacía.
+     */
+    boolean flush() throws IOException {
+        return output.writeTo(channel);
+    }
+}
+
+/**
+ * Cola de salida de una conexión. HttpResponse agrega el bloque de encabezados y el
+ * cuerpo como segmentos separados, sin copiarlos: buffers en memoria o regiones de
+ * archivo. Los buffers consecutivos se envían juntos (incluidas varias respuestas
+ * encadenadas) con una escritura gather (writev) y las regiones con transferTo (sendfile).
+ * Un buffer prestado por la caché fuera del heap va seguido de su OffHeapFile, que se
+ * libera recién cuando todo lo anterior quedó escrito (o la conexión se cierra).
+ * Lleva contadores globales de llamadas de escritura y bytes para verificarlo.
+ */
+class OutputQueue {
+    static final int FILE_COPY_BUFFER_SIZE = 64 * 1024;
+    // Límites de las respuestas encadenadas que se acumulan antes de escribirlas, comunes a
+    // todos los motores: un cliente que envía solicitudes sin leer las respuestas no hace
+    // crecer la cola sin tope.
+    private static final int MAX_BATCHED_RESPONSES = 16;
+    private static final long MAX_BATCHED_BYTES = 256 * 1024;
+
+    private static final ByteBuffer[] EMPTY = new ByteBuffer[0];
+    private static final LongAdder WRITE_CALLS = new LongAdder();
+    private static final LongAdder BYTES_WRITTEN = new LongAdder();
+    private static final LongAdder RESPONSES = new LongAdder();
+
+    // Cada segmento es un ByteBuffer, una FileRegion o un OffHeapFile a liberar.
+    private final ArrayDeque<Object> segments = new ArrayDeque<>();
+
+    public void add(ByteBuffer buffer) {
+        if (buffer.hasRemaining()) {
+            segments.add(buffer);
+        }
+    }
+
+    public void add(FileRegion region) {
+        segments.add(region);
+    }
+
+    /**
+     * Encola un buffer que apunta a memoria de la caché fuera del heap; la entrada (ya
+     * retenida por quien llama) se libera cuando el buffer termina de escribirse.
+     */
+    public void add(ByteBuffer buffer, OffHeapFile lease) {
+        add(buffer);
+        segments.add(lease);
+    }
+
+    /** Marca el fin de una respuesta completa agregada a la cola (solo para estadísticas). */
+    public void responseQueued() {
+        RESPONSES.increment();
+    }
+
+    public boolean isEmpty() {
+        return segments.isEmpty();
+    }
+
+    /**
+     * Si con batchedResponses respuestas encoladas desde la última escritura hay que dejar
+     * de atender solicitudes y escribir antes de seguir.
+     */
+    public boolean isBatchFull(int batchedResponses) {
+        return batchedResponses >= MAX_BATCHED_RESPONSES || bufferedBytes() >= MAX_BATCHED_BYTES;
+    }
+
+    /** Bytes en memoria que esperan escribirse; las regiones de archivo no cuentan. */
+    public long bufferedBytes() {
+        long total = 0;
+        for (Object segment : segments) {
+            if (segment instanceof ByteBuffer buffer) {
+                total += buffer.remaining();
+            }
+        }
+        return total;
+    }
+
+    public boolean hasFileRegions() {
+        for (Object segment : segments) {
+            if (segment instanceof FileRegion) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Escribe lo pendiente: cada tramo de buffers con una sola escritura gather y cada
+     * región de archivo con transferTo. Con un canal no bloqueante puede quedar una parte
+     * sin escribir. Devuelve true si la cola quedó vacía.
+     */
+    public boolean writeTo(GatheringByteChannel channel) throws IOException {
+        while (!segments.isEmpty()) {
+            if (segments.peek() instanceof FileRegion region) {
+                recordWrite(region.transferTo(channel));
+                if (!region.isDone()) {
+                    return false;
+                }
+                region.close();
+                segments.poll();
+            } else {
+                recordWrite(channel.write(leadingBuffers()));
+                dropWrittenBuffers();
+                if (segments.peek() instanceof ByteBuffer) {
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Escribe todo lo pendiente en un canal bloqueante.
+     */
+    public void drainTo(GatheringByteChannel channel) throws IOException {
+        while (!writeTo(channel)) {
+            // Escritura parcial: se sigue con lo que quedó
+        }
+    }
+
+    /**
+     * Alternativa con copia para canales sin transferTo (AsynchronousSocketChannel): entrega
+     * y quita de la cola los buffers iniciales, o si la cola empieza con una región de
+     * archivo, el siguiente bloque de ella copiado en fileBuffer. Vacío si no queda nada.
+     */
+    public ByteBuffer[] takeForCopy(ByteBuffer fileBuffer) throws IOException {
+        if (segments.peek() instanceof FileRegion region) {
+            fileBuffer.clear();
+            region.readInto(fileBuffer);
+            fileBuffer.flip();
+            if (region.isDone()) {
+                region.close();
+                segments.poll();
+            }
+            return new ByteBuffer[] {fileBuffer};
+        }
+        // Lo entregado antes ya terminó de escribirse: se liberan los préstamos que lo seguían.
+        while (segments.peek() instanceof OffHeapFile lease) {
+            lease.release();
+            segments.poll();
+        }
+        int count = 0;
+        for (Object segment : segments) {
+            if (!(segment instanceof ByteBuffer)) {
+                break;
+            }
+            count++;
+        }
+        ByteBuffer[] buffers = new ByteBuffer[count];
+        for (int i = 0; i < count; i++) {
+            buffers[i] = (ByteBuffer) segments.poll();
+        }
+        return buffers;
+    }
+
+    /**
+     * Descarta lo pendiente (la conexión se cerró) y cierra los archivos abiertos.
+     */
+    public void clear() {
+        for (Object segment : segments) {
+            if (segment instanceof FileRegion region) {
+                region.close();
+            } else if (segment instanceof OffHeapFile lease) {
+                lease.release();
+            }
+        }
+        segments.clear();
+    }
+
+    // Buffers iniciales hasta la primera región de archivo; los préstamos no cortan el tramo.
+    private ByteBuffer[] leadingBuffers() {
+        int count = 0;
+        for (Object segment : segments) {
+            if (segment instanceof FileRegion) {
+                break;
+            }
+            if (segment instanceof ByteBuffer) {
+                count++;
+            }
+        }
+        ByteBuffer[] buffers = new ByteBuffer[count];
+        Iterator<Object> it = segments.iterator();
+        for (int i = 0; i < count; ) {
+            if (it.next() instanceof ByteBuffer buffer) {
+                buffers[i++] = buffer;
+            }
+        }
+        return buffers;
+    }
+
+    private void dropWrittenBuffers() {
+        while (true) {
+            Object head = segments.peek();
+            if (head instanceof OffHeapFile lease) {
+                lease.release();
+            } else if (!(head instanceof ByteBuffer buffer) || buffer.hasRemaining()) {
+                return;
+            }
+            segments.poll();
+        }
+    }
+
+    public static void recordWrite(long bytes) {
+        WRITE_CALLS.increment();
+        BYTES_WRITTEN.add(bytes);
+    }
+
+    public static String stats() {
+        long calls = WRITE_CALLS.sum();
+        long bytes = BYTES_WRITTEN.sum();
+        long responses = RESPONSES.sum();
+        return "llamadas=" + calls
+                + " bytes=" + bytes
+                + " respuestas=" + responses
+                + " bytes/llamada=" + (calls == 0 ? 0 : bytes / calls)
+                + " llamadas/respuesta=" + (responses == 0 ? "0" : String.format("%.2f", (double) calls / responses));
+    }
+}
+
+/**
+ * Porción de un archivo abierto pendiente de enviar. Se envía con FileChannel.transferTo,
+ * que en Linux usa sendfile: los bytes pasan de la caché de páginas al socket sin
+ * copiarse al heap. Por defecto la región es dueña del canal y lo cierra al terminar;
+ * si varias regiones comparten un canal (rangos de una misma respuesta), solo la última
+ * encolada es dueña.
+ */
+class FileRegion {
+    private final FileChannel file;
+    private long position;
+    private final long end;
+    private final boolean ownsChannel;
+    // Solo al enviar copiando: el bloque leído del archivo que todavía no terminó de escribirse.
+    private ByteBuffer copyBuffer;
+
+    public FileRegion(FileChannel file, long position, long count) {
+        this(file, position, count, true);
+    }
+
+    public FileRegion(FileChannel file, long position, long count, boolean ownsChannel) {
+        this.file = file;
+        this.position = position;
+        this.end = position + count;
+        this.ownsChannel = ownsChannel;
+    }
+
+    /**
+     * Región que se envía copiando por bloques de FILE_COPY_BUFFER_SIZE (el mismo buffer
+     * para todo el archivo) en lugar de transferTo: la memoria por respuesta queda acotada
+     * sin importar el tamaño del archivo.
+     */
+    public static FileRegion copying(FileChannel file, long position, long count) {
+        FileRegion region = new FileRegion(file, position, count, true);
+        region.copyBuffer = ByteBuffer.allocate(OutputQueue.FILE_COPY_BUFFER_SIZE).flip();
+        return region;
+    }
+
+    public long remaining() {
+        return end - position;
+    }
+
+    public long transferTo(WritableByteChannel target) throws IOException {
+        if (copyBuffer != null) {
+            return copyTo(target);
+        }
+        long sent = file.transferTo(position, end - position, target);
+        if (sent == 0 && position >= file.size()) {
+            throw new IOException("El archivo se acortó mientras se enviaba.");
+        }
+        position += sent;
+        return sent;
+    }
+
+    /**
+     * Copia el siguiente bloque de la región en el buffer (camino con copia).
+     */
+    public void readInto(ByteBuffer buffer) throws IOException {
+        if (buffer.remaining() > end - position) {
+            buffer.limit(buffer.position() + (int) (end - position));
+        }
+        int read = file.read(buffer, position);
+        if (read < 0) {
+            throw new IOException("El archivo se acortó mientras se enviaba.");
+        }
+        position += read;
+    }
+
+    public boolean isDone() {
+        return position >= end && (copyBuffer == null || !copyBuffer.hasRemaining());
+    }
+
+    // Escribe bloques mientras el canal los acepte; lo que no entra queda en copyBuffer.
+    private long copyTo(WritableByteChannel target) throws IOException {
+        long written = 0;
+        while (true) {
+            if (!copyBuffer.hasRemaining()) {
+                if (position >= end) {
+                    return written;
+                }
+                copyBuffer.clear();
+                readInto(copyBuffer);
+                copyBuffer.flip();
+            }
+            written += target.write(copyBuffer);
+            if (copyBuffer.hasRemaining()) {
+                return written;
+            }
+        }
+    }
+
+    public void close() {
+        if (!ownsChannel) {
+            return;
+        }
+        try {
+            file.close();
+        } catch (IOException e) {
+            System.err.println("Error al cerrar el archivo: " + e.getMessage());
+        }
+    }
+}
+
+/**
+ * Estrategia para decidir en qué hilo se atiende cada conexión aceptada.
+ */
+interface ConnectionDispatcher {
+
+    void dispatch(ClientRequestHandler handler);
+
+    String describe();
+
+    static ConnectionDispatcher create(ServerConfig config) {
+        if (config.getDispatchMode().equals("pool")) {
+            BoundedWorkerPool pool = new BoundedWorkerPool(config.getWorkerThreads(),
+                    config.getQueueCapacity(), config.getRejectionPolicy());
+            StatsReporter.register("pool", pool::stats);
+            return pool;
+        }
+        if (config.getDispatchMode().equals("virtual")) {
+            VirtualThreadDispatcher dispatcher = new VirtualThreadDispatcher();
+            StatsReporter.register("virtual", dispatcher::stats);
+            return dispatcher;
+        }
+        return new ThreadPerConnectionDispatcher();
+    }
+}
+
+/**
+ * Despachador original: crea un hilo de plataforma nuevo por cada conexión.
+ */
+class ThreadPerConnectionDispatcher implements ConnectionDispatcher {
+
+    @Override
+    public void dispatch(ClientRequestHandler handler) {
+        // Crea un nuevo hilo para procesar la solicitud e inicia el hilo.
+        new Thread(handler).start();
+    }
+
+    @Override
+    public String describe() {
+        return "un hilo por conexión";
+    }
+}
+
+/**
+ * Despachador que atiende cada conexión en un hilo virtual.
+ * El código bloqueante de ClientRequestHandler se mantiene igual: al bloquearse en el
+ * socket el hilo virtual libera a su portador, y una conexión inactiva ocupa solo
+ * unos KB de pila en el heap en lugar de la pila de 1 MB de un hilo de plataforma.
+ * Para detectar pinning se puede arrancar con -Djdk.tracePinnedThreads=short.
+ */
+class VirtualThreadDispatcher implements ConnectionDispatcher {
+    private final ThreadFactory factory = Thread.ofVirtual().name("conexion-", 0).factory();
+    private final LongAdder started = new LongAdder();
+    private final LongAdder completed = new LongAdder();
+
+    @Override
+    public void dispatch(ClientRequestHandler handler) {
+        started.increment();
+        factory.newThread(() -> {
+            try {
+                handler.run();
+            } finally {
+                completed.increment();
+            }
+        }).start();
+    }
+
+    @Override
+    public String describe() {
+        return "un hilo virtual por conexión";
+    }
+
+    public String stats() {
+        long done = completed.sum();
+        return "activos=" + (started.sum() - done) + " completados=" + done;
+    }
+}
+
+/**
+ * Pool acotado de hilos trabajadores con cola de espera limitada.
+ * Cuando los hilos y la cola están llenos se aplica la política de rechazo:
+ * responder 503, ejecutar en el hilo que acepta (frena el accept) o descartar.
+ */
+class BoundedWorkerPool implements ConnectionDispatcher {
+    private final ThreadPoolExecutor executor;
+    private final String rejectionPolicy;
+    private final AtomicLong rejected = new AtomicLong();
+
+    public BoundedWorkerPool(int threads, int queueCapacity, String rejectionPolicy) {
+        if (threads < 1) {
+            throw new IllegalArgumentException("El pool necesita al menos un hilo.");
+        }
+        BlockingQueue<Runnable> queue = queueCapacity == 0
+                ? new SynchronousQueue<>()
+                : new ArrayBlockingQueue<>(queueCapacity);
+        AtomicInteger counter = new AtomicInteger();
+        this.rejectionPolicy = rejectionPolicy;
+        this.executor = new ThreadPoolExecutor(threads, threads, 60L, TimeUnit.SECONDS, queue,
+                r -> new Thread(r, "trabajador-" + counter.incrementAndGet()),
+                this::reject);
+    }
+
+    @Override
+    public void dispatch(ClientRequestHandler handler) {
+        executor.execute(handler);
+    }
+
+    @Override
+    public String describe() {
+        return "pool acotado (hilos=" + executor.getMaximumPoolSize()
+                + ", cola=" + (executor.getQueue().remainingCapacity() + executor.getQueue().size())
+                + ", rechazo=" + rejectionPolicy + ")";
+    }
+
+    public String stats() {
+        return "activos=" + executor.getActiveCount()
+                + " encolados=" + executor.getQueue().size()
+                + " completados=" + executor.getCompletedTaskCount()
+                + " rechazados=" + rejected.get()
+                + " hilos=" + executor.getPoolSize();
+    }
+
+    private void reject(Runnable task, ThreadPoolExecutor pool) {
+        rejected.incrementAndGet();
+        ClientRequestHandler handler = (ClientRequestHandler) task;
+        if (rejectionPolicy.equals("llamador") && !pool.isShutdown()) {
+            handler.run(); // Atiende en el hilo que acepta: frena el accept mientras dure
+        } else if (rejectionPolicy.equals("descartar")) {
+            handler.close();
+        } else {
+            handler.rejectOverloaded();
+        }
+    }
+}
+
+/**
+ * Reporta periódicamente en consola las estadísticas de los componentes registrados.
+ */
+final class StatsReporter {
+    private static final Map<String, Supplier<String>> SOURCES = new ConcurrentSkipListMap<>();
+
+    private StatsReporter() {
+    }
+
+    public static void register(String name, Supplier<String> source) {
+        SOURCES.put(name, source);
+    }
+
+    public static void start(int intervalSeconds) {
+        if (intervalSeconds <= 0) {
+            return;
+        }
+        ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "estadisticas");
+            t.setDaemon(true);
+            return t;
+        });
+        scheduler.scheduleAtFixedRate(StatsReporter::report, intervalSeconds, intervalSeconds, TimeUnit.SECONDS);
+    }
+
+    private static void report() {
+        for (Map.Entry<String, Supplier<String>> source : SOURCES.entrySet()) {
+            System.out.println("[estadisticas] " + source.getKey() + ": " + source.getValue().get());
+        }
+    }
+}
+
+/**
+ * Clase para manejar una solicitud HTTP entrante en un hilo separado.
+ * Actúa como controlador principal para cada conexión de cliente,
+ * delegando el procesamiento de la solicitud y la respuesta a otras clases.
+ */
+class ClientRequestHandler implements Runnable {
+    private final SocketChannel channel;
+    private final Socket socket;
+    private final HttpRequestProcessor processor;
+    private final OutputQueue output = new OutputQueue();
+
+    public ClientRequestHandler(SocketChannel channel, HttpRequestProcessor processor) {
+        this.channel = channel;
+        this.socket = channel.socket();
+        this.processor = processor;
+    }
+
+    @Override
+    public void run() {
+        try {
+            processRequest();
+        } catch (SocketTimeoutException e) {
+            // Conexión persistente inactiva por más tiempo que el permitido: se cierra
+        } catch (Exception e) {
+            System.err.println("Error al procesar la solicitud: " + e.getMessage());
+        } finally {
+            output.clear();
+            close(); // Asegurar que el socket se cierre siempre
+        }
+    }
+
+    /**
+     * Responde 503 sin procesar la solicitud; se usa cuando el pool está saturado.
+     */
+    public void rejectOverloaded() {
+        try {
+            new HttpResponse(output).sendErrorResponse("503", "Service Unavailable",
+                    "Servidor saturado, intente de nuevo más tarde.");
+            output.drainTo(channel);
+        } catch (IOException e) {
+            System.err.println("Error al rechazar la conexión: " + e.getMessage());
+        } finally {
+            close();
+        }
+    }
+
+    public void close() {
+        try {
+            socket.close();
+        } catch (IOException e) {
+            System.err.println("Error al cerrar el socket: " + e.getMessage());
+        }
+    }
+
+    private void processRequest() throws Exception {
+        // Se lee del flujo del socket (respeta SO_TIMEOUT) y se escribe en el canal (gather).
+        InputStream is = socket.getInputStream();
+        socket.setSoTimeout(processor.getKeepAlivePolicy().getIdleTimeoutMillis());
+
+        // Buffer de entrada reutilizado por todas las solicitudes de la conexión.
+        ByteBuffer input = ByteBuffer.allocate(HttpRequest.MAX_HEAD_BYTES).flip();
+
+        // Atiende solicitudes mientras la conexión siga siendo persistente.
+        boolean keepAlive = true;
+        int batched = 0;
+        for (int requestCount = 0; keepAlive; requestCount++) {
+            // 1. Parsear la solicitud HTTP
+            HttpRequest request = readRequest(is, input);
+            if (request == null) {
+                return; // El cliente cerró la conexión entre solicitudes
+            }
+
+            // 2. Manejar la solicitud y generar la respuesta
+            HttpResponse response = new HttpResponse(output);
+            keepAlive = processor.process(request, response, requestCount);
+
+            // Si ya llegaron más solicitudes encadenadas (pipelining), sus respuestas se
+            // acumulan en la cola y salen juntas; se envía antes de volver a leer del socket
+            // o al llegar a los límites del lote.
+            if (!keepAlive || !input.hasRemaining() || output.isBatchFull(++batched)) {
+                output.drainTo(channel);
+                batched = 0;
+            }
+        }
+    }
+
+    /**
+     * Lee del socket hasta tener una solicitud completa en el buffer (en modo lectura).
+     * Devuelve null si el cliente cerró la conexión antes de empezar otra solicitud.
+     */
+    private HttpRequest readRequest(InputStream is, ByteBuffer input) throws IOException {
+        while (true) {
+            HttpRequest request = HttpRequest.parse(input);
+            if (request != null) {
+                return request;
+            }
+            input.compact();
+            int bytesRead = is.read(input.array(), input.arrayOffset() + input.position(), input.remaining());
+            if (bytesRead > 0) {
+                input.position(input.position() + bytesRead);
+            }
+            input.flip();
+            if (bytesRead < 0) {
+                if (input.hasRemaining()) {
+                    throw new IOException("Solicitud HTTP vacía o conexión cerrada prematuramente.");
+                }
+                return null;
+            }
+        }
+    }
+}
+
+
+/**
+ * Clase con la lógica para atender una solicitud ya parseada, común a todos los motores.
+ * Decide qué archivo servir o qué respuesta de error enviar.
+ */
+class HttpRequestProcessor {
+    private final HttpFileHandler fileHandler;
+    private final DocumentRootIndex documentIndex;
+    private final NotFoundCache notFoundCache;
+    private final KeepAlivePolicy keepAlivePolicy;
+    private final boolean logRequests;
+
+    /**
+     * @param documentIndex índice en memoria de la raíz de documentos; null para consultar el disco
+     * @param notFoundCache caché de rutas inexistentes; null si está desactivada
+     */
+    public HttpRequestProcessor(KeepAlivePolicy keepAlivePolicy, boolean logRequests, HttpFileHandler fileHandler,
+                                DocumentRootIndex documentIndex, NotFoundCache notFoundCache) {
+        this.keepAlivePolicy = keepAlivePolicy;
+        this.logRequests = logRequests;
+        this.fileHandler = fileHandler;
+        this.documentIndex = documentIndex;
+        this.notFoundCache = notFoundCache;
+    }
+
+    public KeepAlivePolicy getKeepAlivePolicy() {
+        return keepAlivePolicy;
+    }
+
+    /**
+     * Atiende la solicitud número requestCount (desde 0) de la conexión y devuelve
+     * si la conexión debe seguir abierta para la siguiente.
+     */
+    public boolean process(HttpRequest request, HttpResponse response, int requestCount) throws Exception {
+        // Imprimir la solicitud en consola (Parte I)
+        if (logRequests) {
+            request.printRequestContent();
+        }
+
+        boolean keepAlive = keepAlivePolicy.allows(request, requestCount);
+        response.setKeepAlive(keepAlive);
+
+        if (request.getMethod().equals("GET")) {
+            String fileName = request.getFileName();
+            if (fileName.equals("/")) {
+                fileName = "/index.html"; // Servir index.html por defecto
+            }
+
+            boolean knownMissing = notFoundCache != null && notFoundCache.isKnownMissing(fileName);
+            long generation = notFoundCache == null ? 0 : notFoundCache.generation();
+            if (knownMissing) {
+                response.sendPrebuilt(notFoundCache.response()); // Ruta que ya se sabe inexistente: sin tocar el disco
+            } else if (documentIndex != null) {
+                FileMetadata metadata = documentIndex.lookup(fileName); // Sin llamadas al sistema
+                if (metadata == null) {
+                    sendNotFound(fileName, response, generation);
+                } else if (!serveFromCache(request, fileName, response, generation)) {
+                    serveFile(request, metadata, fileName, response);
+                }
+            } else if (!serveFromCache(request, fileName, response, generation)) { // Un acierto no toca el disco
+                FileMetadata metadata = fileHandler.describe(fileName); // Archivos en el directorio actual
+
+                if (metadata != null) {
+                    serveFile(request, metadata, fileName, response); // Servir el archivo si existe
+                } else {
+                    sendNotFound(fileName, response, generation); // 404 si no existe
+                }
+            }
+        } else {
+            response.sendErrorResponse("400", "Bad Request", "Este servidor solo soporta el método GET."); // 400 para otros métodos
+        }
+        return keepAlive;
+    }
+
+    private void serveFile(HttpRequest request, FileMetadata metadata, String fileName, HttpResponse response)
+            throws Exception {
+        try {
+            fileHandler.serveFile(request, metadata, response);
+        } catch (NoSuchFileException e) {
+            // Se borró después de consultarlo (o el índice todavía no recibió el aviso)
+            response.sendErrorResponse("404", "Not Found", notFoundMessage(fileName));
+        }
+    }
+
+    private boolean serveFromCache(HttpRequest request, String fileName, HttpResponse response, long generation)
+            throws Exception {
+        try {
+            return fileHandler.serveFromCache(request, fileName, response);
+        } catch (NoSuchFileException e) {
+            // Se borró entre la carga en caché y esta solicitud
+            sendNotFound(fileName, response, generation);
+            return true;
+        }
+    }
+
+    // 404; con la caché negativa activa se recuerda la ruta y se envía su respuesta compartida.
+    private void sendNotFound(String fileName, HttpResponse response, long generation) {
+        if (notFoundCache == null) {
+            response.sendErrorResponse("404", "Not Found", notFoundMessage(fileName));
+            return;
+        }
+        notFoundCache.put(fileName, generation);
+        response.sendPrebuilt(notFoundCache.response());
+    }
+
+    private static String notFoundMessage(String fileName) {
+        return "Archivo " + fileName + " no encontrado.";
+    }
+}
+
+
+/**
+ * Política de conexiones persistentes (keep-alive) común a todos los motores:
+ * si está habilitada, cuánto puede esperar una conexión inactiva y cuántas
+ * solicitudes atiende como máximo antes de cerrarse.
+ */
+final class KeepAlivePolicy {
+    private final boolean enabled;
+    private final int idleTimeoutMillis;
+    private final int maxRequests;
+
+    public KeepAlivePolicy(boolean enabled, int idleTimeoutMillis, int maxRequests) {
+        this.enabled = enabled;
+        this.idleTimeoutMillis = idleTimeoutMillis;
+        this.maxRequests = maxRequests;
+    }
+
+    public int getIdleTimeoutMillis() {
+        return idleTimeoutMillis;
+    }
+
+    /**
+     * Decide si la conexión sigue abierta después de responder esta solicitud.
+     * Una solicitud con cuerpo cierra la conexión: el servidor no lee cuerpos, así
+     * que esos bytes se confundirían con la siguiente solicitud.
+     */
+    public boolean allows(HttpRequest request, int requestCount) {
+        return enabled
+                && requestCount + 1 < maxRequests
+                && request.wantsPersistentConnection()
+                && !request.hasBody();
+    }
+}
+
+
+/**
+ * Clase para representar y analizar una solicitud HTTP.
+ * El parser trabaja directamente sobre los bytes del buffer de lectura: ubica los CRLF
+ * y los espacios en el lugar y guarda posiciones, sin decodificar líneas a String.
+ * Los métodos y versiones comunes se resuelven a constantes sin crear objetos; la ruta
+ * y los encabezados (ver HttpHeaders) se decodifican solo si alguien los pide. Las
+ * posiciones apuntan al buffer, que no debe reutilizarse hasta terminar de atender la solicitud.
+ */
+class HttpRequest {
+    // Tamaño máximo de la línea de solicitud más los encabezados.
+    static final int MAX_HEAD_BYTES = 16 * 1024;
+
+    static final String HTTP_1_0 = "HTTP/1.0";
+    static final String HTTP_1_1 = "HTTP/1.1";
+    private static final String[] KNOWN_METHODS = {"GET", "HEAD", "POST", "PUT", "DELETE", "OPTIONS", "PATCH", "TRACE", "CONNECT"};
+    private static final String[] KNOWN_VERSIONS = {HTTP_1_1, HTTP_1_0};
+
+    private final ByteBuffer source;
+    private final String method;
+    private final int pathStart;
+    private final int pathEnd;
+    private final String httpVersion;
+    private final HttpHeaders headers;
+    private String fileName;
+
+    private HttpRequest(ByteBuffer source, String method, int pathStart, int pathEnd, String httpVersion) {
+        this.source = source;
+        this.method = method;
+        this.pathStart = pathStart;
+        this.pathEnd = pathEnd;
+        this.httpVersion = httpVersion;
+        this.headers = new HttpHeaders(source);
+    }
+
+    /**
+     * Intenta armar una solicitud con los bytes disponibles en el buffer.
+     * Devuelve null sin consumir nada si todavía no llegó el fin de los encabezados;
+     * si la solicitud está completa, avanza la posición del buffer hasta el final de ella.
+     */
+    public static HttpRequest parse(ByteBuffer buffer) throws IOException {
+        int limit = buffer.limit();
+        int start = buffer.position();
+        while (start < limit && (buffer.get(start) == '\r' || buffer.get(start) == '\n')) {
+            start++; // Se ignoran líneas vacías antes de la línea de solicitud
+        }
+
+        int lineEnd = indexOf(buffer, (byte) '\n', start, limit);
+        if (lineEnd < 0) {
+            return incomplete(buffer);
+        }
+        int requestLineEnd = trimCarriageReturn(buffer, start, lineEnd);
+        int methodEnd = indexOf(buffer, (byte) ' ', start, requestLineEnd);
+        if (methodEnd <= start) {
+            throw new IOException("Solicitud HTTP malformada: línea de solicitud incompleta.");
+        }
+        int pathStart = skipSpaces(buffer, methodEnd, requestLineEnd);
+        int pathEnd = indexOf(buffer, (byte) ' ', pathStart, requestLineEnd);
+        if (pathEnd < 0) {
+            pathEnd = requestLineEnd;
+        }
+        if (pathStart == pathEnd) {
+            throw new IOException("Solicitud HTTP malformada: línea de solicitud incompleta.");
+        }
+        int versionStart = skipSpaces(buffer, pathEnd, requestLineEnd);
+        String httpVersion = versionStart == requestLineEnd
+                ? HTTP_1_0 // Asumir HTTP/1.0 si no se especifica
+                : constantOrString(buffer, versionStart, requestLineEnd, KNOWN_VERSIONS);
+
+        HttpRequest request = new HttpRequest(buffer,
+                constantOrString(buffer, start, methodEnd, KNOWN_METHODS), pathStart, pathEnd, httpVersion);
+
+        int lineStart = lineEnd + 1;
+        while (true) {
+            lineEnd = indexOf(buffer, (byte) '\n', lineStart, limit);
+            if (lineEnd < 0) {
+                return incomplete(buffer);
+            }
+            int contentEnd = trimCarriageReturn(buffer, lineStart, lineEnd);
+            if (contentEnd == lineStart) {
+                break; // Línea vacía: fin de los encabezados
+            }
+            request.headers.add(lineStart, contentEnd);
+            lineStart = lineEnd + 1;
+        }
+        buffer.position(lineEnd + 1);
+        return request;
+    }
+
+    private static HttpRequest incomplete(ByteBuffer buffer) throws IOException {
+        if (buffer.remaining() >= MAX_HEAD_BYTES) {
+            throw new IOException("Solicitud HTTP malformada: encabezados demasiado grandes.");
+        }
+        return null;
+    }
+
+    static int indexOf(ByteBuffer buffer, byte value, int from, int to) {
+        for (int i = from; i < to; i++) {
+            if (buffer.get(i) == value) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private static int skipSpaces(ByteBuffer buffer, int from, int to) {
+        while (from < to && buffer.get(from) == ' ') {
+            from++;
+        }
+        return from;
+    }
+
+    private static int trimCarriageReturn(ByteBuffer buffer, int start, int lineEnd) {
+        return lineEnd > start && buffer.get(lineEnd - 1) == '\r' ? lineEnd - 1 : lineEnd;
+    }
+
+    // Devuelve la constante que coincide byte a byte con el rango, o un String nuevo si no hay ninguna.
+    private static String constantOrString(ByteBuffer buffer, int start, int end, String[] constants) {
+        for (String constant : constants) {
+            if (regionEquals(buffer, start, end, constant, false)) {
+                return constant;
+            }
+        }
+        return decode(buffer, start, end);
+    }
+
+    static boolean regionEquals(ByteBuffer buffer, int start, int end, String ascii, boolean ignoreCase) {
+        if (end - start != ascii.length()) {
+            return false;
+        }
+        for (int i = 0; i < ascii.length(); i++) {
+            int b = buffer.get(start + i);
+            int c = ascii.charAt(i);
+            if (b != c && !(ignoreCase && toLowerAscii(b) == toLowerAscii(c))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    static int toLowerAscii(int c) {
+        return c >= 'A' && c <= 'Z' ? c + ('a' - 'A') : c;
+    }
+
+    static String decode(ByteBuffer buffer, int start, int end) {
+        byte[] bytes = new byte[end - start];
+        buffer.get(start, bytes);
+        return new String(bytes, StandardCharsets.ISO_8859_1);
+    }
+
+    public void printRequestContent() {
+        System.out.println("=====================Solicitud HTTP Recibida=====================");
+        System.out.println(getMethod() + " " + getFileName() + " " + getHttpVersion());
+
+        for (int i = 0; i < headers.size(); i++) {
+            System.out.println(headers.lineAt(i));
+        }
+        System.out.println("=========================Fin de Solicitud=========================");
+    }
+
+
+    public String getMethod() {
+        return method;
+    }
+
+    public String getFileName() {
+        if (fileName == null) {
+            fileName = decode(source, pathStart, pathEnd);
+        }
+        return fileName;
+    }
+
+    /** Posición de inicio de la ruta dentro del buffer de lectura. */
+    public int getPathStart() {
+        return pathStart;
+    }
+
+    /** Posición siguiente al último byte de la ruta dentro del buffer de lectura. */
+    public int getPathEnd() {
+        return pathEnd;
+    }
+
+    public String getHttpVersion() {
+        return httpVersion;
+    }
+
+    public HttpHeaders getHeaders() {
+        return headers;
+    }
+
+    /**
+     * HTTP/1.1 es persistente salvo "Connection: close"; HTTP/1.0 solo con "Connection: keep-alive".
+     */
+    public boolean wantsPersistentConnection() {
+        if (HTTP_1_1.equals(httpVersion)) {
+            return !headers.hasToken(HttpHeaders.Known.CONNECTION, "close");
+        }
+        return headers.hasToken(HttpHeaders.Known.CONNECTION, "keep-alive");
+    }
+
+    public boolean hasBody() {
+        return headers.contains(HttpHeaders.Known.TRANSFER_ENCODING)
+                || (headers.contains(HttpHeaders.Known.CONTENT_LENGTH)
+                    && !headers.valueEquals(HttpHeaders.Known.CONTENT_LENGTH, "0"));
+    }
+}
+
+
+/**
+ * Encabezados de una solicitud capturados durante el parseo como rangos de bytes del
+ * buffer de lectura más un índice pequeño. Los nombres conocidos se reconocen al
+ * parsear comparando bytes (sin crear objetos) y los valores se decodifican a String
+ * recién en el primer acceso, quedando guardados para los siguientes.
+ */
+final class HttpHeaders {
+
+    /** Encabezados que el servidor consulta en el camino caliente. */
+    enum Known {
+        HOST("Host"),
+        CONNECTION("Connection"),
+        CONTENT_LENGTH("Content-Length"),
+        TRANSFER_ENCODING("Transfer-Encoding"),
+        ACCEPT_ENCODING("Accept-Encoding"),
+        IF_NONE_MATCH("If-None-Match"),
+        IF_MODIFIED_SINCE("If-Modified-Since"),
+        RANGE("Range"),
+        IF_RANGE("If-Range");
+
+        private static final Known[] ALL = values();
+
+        final String headerName;
+
+        Known(String headerName) {
+            this.headerName = headerName;
+        }
+    }
+
+    // Por encabezado, 4 posiciones: inicio de la línea, dos puntos, inicio y fin del valor.
+    private static final int FIELDS = 4;
+
+    private final ByteBuffer source;
+    private int[] bounds = new int[FIELDS * 8];
+    private int count;
+    // Índice del primer encabezado de cada nombre conocido, o -1.
+    private final byte[] knownIndex = new byte[Known.ALL.length];
+    private String[] decodedValues;
+
+    HttpHeaders(ByteBuffer source) {
+        this.source = source;
+        Arrays.fill(knownIndex, (byte) -1);
+    }
+
+    /**
+     * Registra la línea de encabezado [start, end) del buffer.
+     */
+    void add(int start, int end) {
+        int colon = HttpRequest.indexOf(source, (byte) ':', start, end);
+        if (colon < 0) {
+            colon = end; // Línea sin dos puntos: nombre sin valor
+        }
+        int valueStart = Math.min(colon + 1, end);
+        int valueEnd = end;
+        while (valueStart < valueEnd && isWhitespace(source.get(valueStart))) {
+            valueStart++;
+        }
+        while (valueEnd > valueStart && isWhitespace(source.get(valueEnd - 1))) {
+            valueEnd--;
+        }
+
+        if ((count + 1) * FIELDS > bounds.length) {
+            bounds = Arrays.copyOf(bounds, bounds.length * 2);
+        }
+        int base = count * FIELDS;
+        bounds[base] = start;
+        bounds[base + 1] = colon;
+        bounds[base + 2] = valueStart;
+        bounds[base + 3] = valueEnd;
+
+        if (count < Byte.MAX_VALUE) {
+            for (Known known : Known.ALL) {
+                if (knownIndex[known.ordinal()] < 0
+                        && HttpRequest.regionEquals(source, start, colon, known.headerName, true)) {
+                    knownIndex[known.ordinal()] = (byte) count;
+                    break;
+                }
+            }
+        }
+        count++;
+    }
+
+    public int size() {
+        return count;
+    }
+
+    public boolean contains(Known header) {
+        return knownIndex[header.ordinal()] >= 0;
+    }
+
+    public String get(Known header) {
+        int index = knownIndex[header.ordinal()];
+        return index < 0 ? null : valueAt(index);
+    }
+
+    /**
+     * Valor del primer encabezado con ese nombre (sin distinguir mayúsculas), o null.
+     */
+    public String get(String name) {
+        for (int i = 0; i < count; i++) {
+            if (HttpRequest.regionEquals(source, bounds[i * FIELDS], bounds[i * FIELDS + 1], name, true)) {
+                return valueAt(i);
+            }
+        }
+        return null;
+    }
+
+    public String valueAt(int index) {
+        if (decodedValues == null) {
+            decodedValues = new String[count];
+        } else if (decodedValues.length < count) {
+            decodedValues = Arrays.copyOf(decodedValues, count);
+        }
+        if (decodedValues[index] == null) {
+            int base = index * FIELDS;
+            decodedValues[index] = HttpRequest.decode(source, bounds[base + 2], bounds[base + 3]);
+        }
+        return decodedValues[index];
+    }
+
+    /** Línea original del encabezado, tal como llegó. */
+    public String lineAt(int index) {
+        int base = index * FIELDS;
+        return HttpRequest.decode(source, bounds[base], bounds[base + 3]);
+    }
+
+    /**
+     * Compara el valor completo del encabezado sin decodificarlo.
+     */
+    public boolean valueEquals(Known header, String expected) {
+        int index = knownIndex[header.ordinal()];
+        if (index < 0) {
+            return false;
+        }
+        int base = index * FIELDS;
+        return HttpRequest.regionEquals(source, bounds[base + 2], bounds[base + 3], expected, true);
+    }
+
+    /**
+     * Busca un elemento de una lista separada por comas (p. ej. "Connection: keep-alive, Upgrade")
+     * directamente sobre los bytes del valor.
+     */
+    public boolean hasToken(Known header, String token) {
+        int index = knownIndex[header.ordinal()];
+        if (index < 0) {
+            return false;
+        }
+        int base = index * FIELDS;
+        int end = bounds[base + 3];
+        int tokenStart = bounds[base + 2];
+        while (tokenStart < end) {
+            int tokenEnd = HttpRequest.indexOf(source, (byte) ',', tokenStart, end);
+            if (tokenEnd < 0) {
+                tokenEnd = end;
+            }
+            int from = tokenStart;
+            int to = tokenEnd;
+            while (from < to && isWhitespace(source.get(from))) {
+                from++;
+            }
+            while (to > from && isWhitespace(source.get(to - 1))) {
+                to--;
+            }
+            if (HttpRequest.regionEquals(source, from, to, token, true)) {
+                return true;
+            }
+            tokenStart = tokenEnd + 1;
+        }
+        return false;
+    }
+
+    private static boolean isWhitespace(byte b) {
+        return b == ' ' || b == '\t';
+    }
+}
+
+
+/**
+ * Microbenchmark del parser de solicitudes: compara HttpRequest.parse sobre un buffer
+ * reutilizado con el parser anterior (BufferedReader + StringTokenizer).
+ * Uso: java HttpRequestParserBenchmark [iteraciones]
+ */
+final class HttpRequestParserBenchmark {
+    private static final byte[] SAMPLE = ("GET /sog.html HTTP/1.1\r\n"
+            + "Host: localhost:6789\r\n"
+            + "User-Agent: Mozilla/5.0 (X11; Linux x86_64; rv:128.0) Gecko/20100101 Firefox/128.0\r\n"
+            + "Accept: text/html,application/xhtml+xml,application/xml;q=0.9,*/*;q=0.8\r\n"
+            + "Accept-Encoding: gzip, deflate, br\r\n"
+            + "Connection: keep-alive\r\n\r\n").getBytes(StandardCharsets.ISO_8859_1);
+
+    private HttpRequestParserBenchmark() {
+    }
+
+    public static void main(String[] args) throws IOException {
+        int iterations = args.length > 0 ? Integer.parseInt(args[0]) : 2_000_000;
+        for (int round = 1; round <= 3; round++) { // Las primeras rondas sirven de calentamiento
+            System.out.println("Ronda " + round + ":");
+            report("bytes (HttpRequest.parse)", iterations, HttpRequestParserBenchmark::parseBytes);
+            report("BufferedReader + StringTokenizer", iterations, HttpRequestParserBenchmark::parseReader);
+        }
+    }
+
+    private interface Parser {
+        long run(int iterations) throws IOException;
+    }
+
+    private static void report(String name, int iterations, Parser parser) throws IOException {
+        long start = System.nanoTime();
+        long checksum = parser.run(iterations);
+        long elapsed = System.nanoTime() - start;
+        System.out.printf("  %-34s %8.1f ns/solicitud  %,12.0f solicitudes/s  (control %d)%n",
+                name, (double) elapsed / iterations, iterations * 1e9 / elapsed, checksum);
+    }
+
+    private static long parseBytes(int iterations) throws IOException {
+        ByteBuffer buffer = ByteBuffer.wrap(SAMPLE);
+        long checksum = 0;
+        for (int i = 0; i < iterations; i++) {
+            buffer.clear();
+            HttpRequest request = HttpRequest.parse(buffer);
+            checksum += request.getPathEnd() - request.getPathStart() + request.getMethod().length();
+        }
+        return checksum;
+    }
+
+    private static long parseReader(int iterations) throws IOException {
+        long checksum = 0;
+        for (int i = 0; i < iterations; i++) {
+            BufferedReader reader = new BufferedReader(new InputStreamReader(new ByteArrayInputStream(SAMPLE)));
+            StringTokenizer tokenizer = new StringTokenizer(reader.readLine());
+            String method = tokenizer.nextToken();
+            String path = tokenizer.nextToken();
+            String line;
+            while ((line = reader.readLine()) != null && line.length() != 0) {
+                checksum += line.length() & 1;
+            }
+            checksum += path.length() + method.length();
+        }
+        return checksum;
+    }
+}
+
+
+/**
+ * Clase para construir y enviar respuestas HTTP.
+ * Encapsula la lógica para crear líneas de estado, encabezados y cuerpos de respuesta.
+ */
+class HttpResponse {
+    private static final String CRLF = "\r\n";
+
+    // Los encabezados se arman en memoria y se agregan a la cola como un único buffer,
+    // seguido del cuerpo; la cola envía ambos con una sola escritura gather.
+    private final OutputQueue output;
+    private final StringBuilder headers = new StringBuilder(160);
+    private boolean keepAlive;
+    private boolean varyAcceptEncoding;
+
+    public HttpResponse(OutputQueue output) {
+        this.output = output;
+    }
+
+    /**
+     * Indica que la representación elegida depende de Accept-Encoding (el archivo admite
+     * compresión), para que los cachés intermedios no entreguen una variante equivocada.
+     */
+    public void setVaryAcceptEncoding(boolean varyAcceptEncoding) {
+        this.varyAcceptEncoding = varyAcceptEncoding;
+    }
+
+    /**
+     * Indica si la conexión sigue abierta después de esta respuesta (por defecto se cierra).
+     */
+    public void setKeepAlive(boolean keepAlive) {
+        this.keepAlive = keepAlive;
+    }
+
+    /**
+     * Envía una respuesta ya serializada: un solo buffer, sin formatear nada.
+     */
+    public void sendPrebuilt(PrebuiltResponse prebuilt) {
+        output.add(prebuilt.forConnection(keepAlive));
+        output.responseQueued();
+    }
+
+    /**
+     * Serializa una respuesta 200 completa (encabezados y cuerpo) en un único arreglo.
+     */
+    static byte[] serializeFileResponse(FileMetadata file, byte[] body, boolean keepAlive,
+                                        boolean varyAcceptEncoding) {
+        HttpResponse response = new HttpResponse(null);
+        response.setKeepAlive(keepAlive);
+        response.setVaryAcceptEncoding(varyAcceptEncoding);
+        response.appendFileHeaders(file, body.length);
+        return response.serializeWith(body);
+    }
+
+    /**
+     * Serializa una respuesta de error completa, igual a la de sendErrorResponse.
+     */
+    static byte[] serializeErrorResponse(String statusCode, String statusText, String messageBody,
+                                         boolean keepAlive) {
+        HttpResponse response = new HttpResponse(null);
+        response.setKeepAlive(keepAlive);
+        byte[] body = response.appendErrorHeaders(statusCode, statusText, messageBody);
+        return response.serializeWith(body);
+    }
+
+    public void sendFileResponse(FileMetadata file, byte[] fileData) {
+        sendFileResponse(file, ByteBuffer.wrap(fileData));
+    }
+
+    /**
+     * Respuesta 200 con el cuerpo en un buffer (p. ej. una vista de un archivo mapeado).
+     */
+    public void sendFileResponse(FileMetadata file, ByteBuffer body) {
+        appendFileHeaders(file, body.remaining());
+        send(body);
+    }
+
+    /**
+     * Respuesta 200 cuyo cuerpo se envía desde el archivo abierto (transferTo o por
+     * bloques, según la región); la respuesta se queda con el canal y lo cierra al
+     * terminar de enviarlo.
+     */
+    public void sendFileResponse(FileMetadata file, FileRegion body) {
+        appendFileHeaders(file, body.remaining());
+        sendHeaders();
+        output.add(body);
+        output.responseQueued();
+    }
+
+    /**
+     * Respuesta 200 con el cuerpo en la caché fuera del heap: el buffer directo se escribe
+     * sin copiarse al heap y la entrada (ya retenida) se libera al terminar de enviarse.
+     */
+    public void sendFileResponse(FileMetadata metadata, OffHeapFile file) {
+        appendFileHeaders(metadata, file.length());
+        sendHeaders();
+        output.add(file.content(), file);
+        output.responseQueued();
+    }
+
+    /**
+     * 206 con un único rango [start, start + length) del archivo, enviado desde el canal
+     * con transferTo; la respuesta se queda con el canal.
+     */
+    public void sendPartialResponse(FileMetadata file, FileChannel channel, long start, long length,
+                                    long totalSize) {
+        appendStatusLine("206", "Partial Content");
+        appendContentTypeHeader(file.getContentType());
+        appendValidatorHeaders(file);
+        appendVaryHeader();
+        headers.append("Content-Range: ");
+        appendContentRange(start, start + length - 1, totalSize);
+        headers.append(CRLF);
+        appendConnectionHeader();
+        appendContentLengthHeader(length);
+        appendEndOfHeaders();
+        sendHeaders();
+        output.add(new FileRegion(channel, start, length));
+        output.responseQueued();
+    }
+
+    /**
+     * 206 multipart/byteranges: cada rango (pares inicio, fin inclusivo) es una parte con
+     * su propio Content-Type y Content-Range. Las partes comparten el canal; la última
+     * región es la que lo cierra.
+     */
+    public void sendMultipartResponse(FileMetadata file, FileChannel channel, long[] ranges, long totalSize) {
+        String boundary = Long.toHexString(ThreadLocalRandom.current().nextLong() | Long.MIN_VALUE);
+        int parts = ranges.length / 2;
+        byte[][] partHeaders = new byte[parts][];
+        long contentLength = 0;
+        for (int i = 0; i < parts; i++) {
+            headers.setLength(0);
+            headers.append(CRLF).append("--").append(boundary).append(CRLF);
+            appendContentTypeHeader(file.getContentType());
+            headers.append("Content-Range: ");
+            appendContentRange(ranges[2 * i], ranges[2 * i + 1], totalSize);
+            headers.append(CRLF).append(CRLF);
+            partHeaders[i] = headers.toString().getBytes(StandardCharsets.ISO_8859_1);
+            contentLength += partHeaders[i].length + ranges[2 * i + 1] - ranges[2 * i] + 1;
+        }
+        byte[] closing = (CRLF + "--" + boundary + "--" + CRLF).getBytes(StandardCharsets.ISO_8859_1);
+        contentLength += closing.length;
+
+        headers.setLength(0);
+        appendStatusLine("206", "Partial Content");
+        appendContentTypeHeader("multipart/byteranges; boundary=" + boundary);
+        appendValidatorHeaders(file);
+        appendVaryHeader();
+        appendConnectionHeader();
+        appendContentLengthHeader(contentLength);
+        appendEndOfHeaders();
+        sendHeaders();
+        for (int i = 0; i < parts; i++) {
+            output.add(ByteBuffer.wrap(partHeaders[i]));
+            long start = ranges[2 * i];
+            output.add(new FileRegion(channel, start, ranges[2 * i + 1] - start + 1, i == parts - 1));
+        }
+        output.add(ByteBuffer.wrap(closing));
+        output.responseQueued();
+    }
+
+    /**
+     * 416: ningún rango pedido cae dentro del archivo.
+     */
+    public void sendRangeNotSatisfiable(long totalSize) {
+        appendStatusLine("416", "Range Not Satisfiable");
+        headers.append("Content-Range: bytes */").append(totalSize).append(CRLF);
+        appendConnectionHeader();
+        appendContentLengthHeader(0);
+        appendEndOfHeaders();
+        sendHeaders();
+        output.responseQueued();
+    }
+
+    /**
+     * 304 para un GET condicional cuya copia en el cliente sigue vigente: los validadores
+     * y ningún cuerpo.
+     */
+    public void sendNotModified(FileMetadata file) {
+        appendStatusLine("304", "Not Modified");
+        appendValidatorHeaders(file);
+        appendVaryHeader();
+        appendConnectionHeader();
+        appendEndOfHeaders();
+        sendHeaders();
+        output.responseQueued();
+    }
+
+    public void sendErrorResponse(String statusCode, String statusText, String messageBody) {
+        byte[] body = appendErrorHeaders(statusCode, statusText, messageBody);
+        send(ByteBuffer.wrap(body));
+    }
+
+    // Agrega los encabezados de la página de error y devuelve su cuerpo.
+    private byte[] appendErrorHeaders(String statusCode, String statusText, String messageBody) {
+        byte[] body = generateErrorHtml(statusCode, statusText, messageBody).getBytes();
+        appendStatusLine(statusCode, statusText);
+        appendContentTypeHeader("text/html");
+        appendConnectionHeader();
+        appendContentLengthHeader(body.length);
+        appendEndOfHeaders();
+        return body;
+    }
+
+    // Encabezados acumulados seguidos del cuerpo, en un solo arreglo.
+    private byte[] serializeWith(byte[] body) {
+        byte[] head = headers.toString().getBytes(StandardCharsets.ISO_8859_1);
+        byte[] complete = Arrays.copyOf(head, head.length + body.length);
+        System.arraycopy(body, 0, complete, head.length, body.length);
+        return complete;
+    }
+
+
+    private void appendFileHeaders(FileMetadata file, long contentLength) {
+        appendStatusLine("200", "OK");
+        appendContentTypeHeader(file.getContentType());
+        if (file.getContentEncoding() != null) {
+            headers.append("Content-Encoding: ").append(file.getContentEncoding()).append(CRLF);
+        }
+        appendValidatorHeaders(file);
+        appendVaryHeader();
+        headers.append("Accept-Ranges: bytes").append(CRLF);
+        appendConnectionHeader();
+        appendContentLengthHeader(contentLength);
+        appendEndOfHeaders();
+    }
+
+    private void appendVaryHeader() {
+        if (varyAcceptEncoding) {
+            headers.append("Vary: Accept-Encoding").append(CRLF);
+        }
+    }
+
+    private void appendContentRange(long first, long last, long totalSize) {
+        headers.append("bytes ").append(first).append('-').append(last).append('/').append(totalSize);
+    }
+
+    private void appendStatusLine(String statusCode, String statusText) {
+        headers.append("HTTP/1.1 ").append(statusCode).append(' ').append(statusText).append(CRLF);
+    }
+
+    private void appendContentTypeHeader(String contentType) {
+        headers.append("Content-Type: ").append(contentType).append(CRLF);
+    }
+
+    private void appendValidatorHeaders(FileMetadata file) {
+        headers.append("ETag: ").append(file.getEtag()).append(CRLF);
+        headers.append("Last-Modified: ").append(file.getLastModifiedHttpDate()).append(CRLF);
+    }
+
+    private void appendContentLengthHeader(long contentLength) {
+        headers.append("Content-Length: ").append(contentLength).append(CRLF);
+    }
+
+    private void appendConnectionHeader() {
+        headers.append("Connection: ").append(keepAlive ? "keep-alive" : "close").append(CRLF);
+    }
+
+    private void appendEndOfHeaders() {
+        headers.append(CRLF);
+    }
+
+    // Encola el bloque de encabezados y el cuerpo, sin copiar el cuerpo.
+    private void send(ByteBuffer body) {
+        sendHeaders();
+        output.add(body);
+        output.responseQueued();
+    }
+
+    private void sendHeaders() {
+        output.add(ByteBuffer.wrap(headers.toString().getBytes(StandardCharsets.ISO_8859_1)));
+        headers.setLength(0);
+    }
+
+    private String generateErrorHtml(String statusCode, String statusText, String message) {
+        return "<HTML><HEAD><TITLE>" + statusCode + " " + statusText + "</TITLE></HEAD><BODY><H1>" + statusCode + " " + statusText + "</H1><P>" + message + "</P></BODY></HTML>";
+    }
+}
+
+
+/**
+ * Respuesta completa (un archivo pequeño o una página de error), serializada una sola vez
+ * en buffers directos (uno por valor del encabezado Connection) y enviada tal cual en
+ * cada acierto. Los encabezados dependen solo de opciones fijadas al arrancar; si cambia
+ * el archivo, la caché crea una entrada nueva sin respuesta armada.
+ */
+final class PrebuiltResponse {
+    private final ByteBuffer keepAliveResponse;
+    private final ByteBuffer closeResponse;
+
+    private PrebuiltResponse(ByteBuffer keepAliveResponse, ByteBuffer closeResponse) {
+        this.keepAliveResponse = keepAliveResponse;
+        this.closeResponse = closeResponse;
+    }
+
+    static PrebuiltResponse forFile(FileMetadata file, byte[] body, boolean varyAcceptEncoding) {
+        return new PrebuiltResponse(
+                toDirect(HttpResponse.serializeFileResponse(file, body, true, varyAcceptEncoding)),
+                toDirect(HttpResponse.serializeFileResponse(file, body, false, varyAcceptEncoding)));
+    }
+
+    static PrebuiltResponse forError(String statusCode, String statusText, String messageBody) {
+        return new PrebuiltResponse(
+                toDirect(HttpResponse.serializeErrorResponse(statusCode, statusText, messageBody, true)),
+                toDirect(HttpResponse.serializeErrorResponse(statusCode, statusText, messageBody, false)));
+    }
+
+    /** Vista propia de la respuesta, lista para encolar. */
+    ByteBuffer forConnection(boolean keepAlive) {
+        return (keepAlive ? keepAliveResponse : closeResponse).duplicate();
+    }
+
+    private static ByteBuffer toDirect(byte[] bytes) {
+        ByteBuffer direct = ByteBuffer.allocateDirect(bytes.length);
+        direct.put(bytes).flip();
+        return direct.asReadOnlyBuffer();
+    }
+}
+
+
+/**
+ * Clase para manejar la lógica de servir archivos estáticos.
+ * Incluye la determinación del tipo de contenido y el envío del archivo como respuesta.
+ */
+class HttpFileHandler {
+    // En modo "copia", los archivos de hasta este tamaño se leen enteros; los demás se envían por bloques.
+    private static final long WHOLE_READ_MAX_BYTES = 1024 * 1024;
+    // Archivos cuyos metadatos recuerda describe; al llenarse se empieza de nuevo.
+    private static final int MAX_DESCRIBED_FILES = 4096;
+
+    private final boolean zeroCopy;
+    private final MimeTypeRegistry mimeTypes;
+    private final MappedFileCache mappedFiles;
+    private final StaticFileCache fileCache;
+    private final OffHeapFileCache offHeapCache;
+    private final CompressedVariantCache compression;
+    private final boolean precompressed;
+    private final long sidecarRevalidateMillis;
+    private final int prebuiltMaxBytes;
+    private final LongAdder prebuiltServed = new LongAdder();
+    private final LongAdder prebuiltBuilt = new LongAdder();
+    private final LongAdder notModified = new LongAdder();
+    private final LongAdder partial = new LongAdder();
+    private final LongAdder unsatisfiable = new LongAdder();
+    private final LongAdder sidecarsServed = new LongAdder();
+    // Metadatos por ruta de la solicitud, para no rearmarlos (tipo, ETag, fecha) en cada GET.
+    private final ConcurrentHashMap<String, FileMetadata> describedFiles = new ConcurrentHashMap<>();
+
+    /**
+     * @param transferMode "copia" (lee el archivo al heap), "sendfile" (transferTo) o "mmap"
+     * @param mimeTypes tipos de contenido por extensión
+     * @param mappedFiles caché de mapeos para el modo "mmap"; null en los demás modos
+     * @param fileCache caché de contenido; null si está desactivada
+     * @param offHeapCache nivel fuera del heap, consultado si fileCache no tiene el archivo; null si está desactivado
+     * @param compression variantes comprimidas para Accept-Encoding; null si la compresión está desactivada
+     * @param precompressed si se buscan y envían los "archivo.gz" que acompañan a los originales
+     * @param sidecarRevalidateMillis cada cuánto, como máximo, se vuelve a buscar el "archivo.gz"
+     * @param prebuiltMaxBytes tamaño máximo de archivo cacheado que se guarda como respuesta completa
+     */
+    public HttpFileHandler(String transferMode, MimeTypeRegistry mimeTypes, MappedFileCache mappedFiles,
+                           StaticFileCache fileCache, OffHeapFileCache offHeapCache,
+                           CompressedVariantCache compression, boolean precompressed,
+                           long sidecarRevalidateMillis, int prebuiltMaxBytes) {
+        this.zeroCopy = !transferMode.equals("copia");
+        this.mimeTypes = mimeTypes;
+        this.mappedFiles = mappedFiles;
+        this.fileCache = fileCache;
+        this.offHeapCache = offHeapCache;
+        this.compression = compression;
+        this.precompressed = precompressed;
+        this.sidecarRevalidateMillis = sidecarRevalidateMillis;
+        this.prebuiltMaxBytes = prebuiltMaxBytes;
+    }
+
+    public String prebuiltStats() {
+        return "enviadas=" + prebuiltServed.sum() + " armadas=" + prebuiltBuilt.sum();
+    }
+
+    public String conditionalStats() {
+        return "no-modificados=" + notModified.sum()
+                + " parciales=" + partial.sum()
+                + " no-satisfacibles=" + unsatisfiable.sum();
+    }
+
+    public String precompressedStats() {
+        return "enviados=" + sidecarsServed.sum();
+    }
+
+    /**
+     * Metadatos del archivo de la ruta en el directorio actual, o null si no existe o no es
+     * un archivo regular. Hace una sola consulta al disco, con la que se revalidan los
+     * metadatos recordados: solo se rearman cuando cambió el tamaño o la fecha del archivo.
+     * El precomprimido, si están activados, se vuelve a buscar además cada
+     * sidecarRevalidateMillis.
+     */
+    public FileMetadata describe(String fileName) throws IOException {
+        Path path = Paths.get("." + fileName);
+        BasicFileAttributes attributes = FileMetadata.readAttributes(path);
+        if (attributes == null || !attributes.isRegularFile()) {
+            describedFiles.remove(fileName);
+            return null;
+        }
+        FileMetadata metadata = describedFiles.get(fileName);
+        if (metadata == null || !metadata.matches(attributes)) {
+            metadata = withSidecar(FileMetadata.of(path, attributes, mimeTypes));
+            if (describedFiles.size() >= MAX_DESCRIBED_FILES) {
+                describedFiles.clear();
+            }
+            describedFiles.put(fileName, metadata);
+        } else if (isSidecarStale(metadata)) {
+            metadata = withSidecar(metadata);
+            describedFiles.put(fileName, metadata);
+        }
+        return metadata;
+    }
+
+    /**
+     * Sirve el archivo desde la caché de contenido, cargándolo si hace falta. Devuelve
+     * false si hay que seguir por el camino normal: caché desactivada, archivo inexistente
+     * o demasiado grande para cachearse.
+     */
+    public boolean serveFromCache(HttpRequest request, String fileName, HttpResponse response) throws IOException {
+        if (fileCache == null && offHeapCache == null) {
+            return false;
+        }
+        if (request.getHeaders().contains(HttpHeaders.Known.RANGE)) {
+            return false; // Los rangos se envían desde el archivo
+        }
+        Path path = Paths.get("." + fileName).normalize();
+        CachedFile cached = fileCache == null ? null : fileCache.get(path);
+        if (cached == null) {
+            return serveFromOffHeap(request, path, response);
+        }
+        FileMetadata metadata = cached.metadata;
+        if (metadata == null || isSidecarStale(metadata)) {
+            // Una vez por entrada, es decir por versión del archivo, y al revalidar el precomprimido
+            FileMetadata fresh = withSidecar(metadata != null ? metadata
+                    : FileMetadata.of(path, cached.getData().length, cached.getLastModified(), mimeTypes));
+            if (metadata != null && (metadata.getGzipSidecar() == null) != (fresh.getGzipSidecar() == null)) {
+                cached.prebuiltResponse = null; // Cambia Vary: Accept-Encoding
+            }
+            metadata = fresh;
+            cached.metadata = metadata;
+        }
+        if (serveSidecar(request, metadata, response)
+                || serveCompressed(request, metadata, ByteBuffer.wrap(cached.getData()), response)) {
+            return true;
+        }
+        if (isNotModified(request, metadata)) {
+            sendNotModified(metadata, response);
+            return true;
+        }
+        if (cached.getData().length > prebuiltMaxBytes) {
+            response.sendFileResponse(metadata, ByteBuffer.wrap(cached.getData()));
+            return true;
+        }
+
+        // Archivo pequeño: la respuesta completa se serializa una vez por versión del
+        // archivo, y cada acierto es una sola escritura.
+        PrebuiltResponse prebuilt = cached.prebuiltResponse;
+        if (prebuilt == null) {
+            prebuilt = PrebuiltResponse.forFile(metadata, cached.getData(),
+                    metadata.getGzipSidecar() != null || isCompressible(metadata));
+            cached.prebuiltResponse = prebuilt;
+            prebuiltBuilt.increment();
+        }
+        response.sendPrebuilt(prebuilt);
+        prebuiltServed.increment();
+        return true;
+    }
+
+    private boolean serveFromOffHeap(HttpRequest request, Path path, HttpResponse response) throws IOException {
+        if (offHeapCache == null) {
+            return false;
+        }
+        OffHeapFile file = offHeapCache.get(path);
+        if (file == null) {
+            return false;
+        }
+        // La referencia tomada pasa a la cola solo si se envía el contenido; en cualquier otro
+        // caso, excepciones incluidas, se devuelve aquí para que el bloque vuelva al asignador.
+        boolean queued = false;
+        try {
+            FileMetadata metadata = file.metadata;
+            if (metadata == null || isSidecarStale(metadata)) {
+                metadata = withSidecar(metadata != null ? metadata
+                        : FileMetadata.of(path, file.length(), file.getLastModified(), mimeTypes));
+                file.metadata = metadata;
+            }
+            if (serveSidecar(request, metadata, response)
+                    || serveCompressed(request, metadata, file.content(), response)) {
+                return true;
+            }
+            if (isNotModified(request, metadata)) {
+                sendNotModified(metadata, response);
+                return true;
+            }
+            response.sendFileResponse(metadata, file);
+            queued = true;
+            return true;
+        } finally {
+            if (!queued) {
+                file.release();
+            }
+        }
+    }
+
+    /**
+     * Sirve el archivo descrito por metadata (del índice o de describe), con el tipo de
+     * contenido y los validadores ya resueltos; un GET condicional vigente recibe un 304.
+     */
+    public void serveFile(HttpRequest request, FileMetadata metadata, HttpResponse response) throws IOException {
+        if (serveSidecar(request, metadata, response) || serveCompressed(request, metadata, null, response)) {
+            return;
+        }
+        if (isNotModified(request, metadata)) {
+            sendNotModified(metadata, response);
+            return;
+        }
+        String range = request.getHeaders().get(HttpHeaders.Known.RANGE);
+        if (range != null && serveRanges(request, range, metadata, response)) {
+            return;
+        }
+        Path file = metadata.getPath();
+        if (mappedFiles != null) {
+            ByteBuffer mapped = mappedFiles.get(file);
+            if (mapped != null) {
+                response.sendFileResponse(metadata, mapped);
+                return;
+            }
+            // No se puede mapear (más de 2 GB o más que el presupuesto): se envía con transferTo
+        }
+        if (zeroCopy) {
+            // El cuerpo va del archivo al socket con transferTo; la respuesta cierra el canal.
+            FileChannel channel = FileChannel.open(file, StandardOpenOption.READ);
+            response.sendFileResponse(metadata, new FileRegion(channel, 0, channel.size()));
+            return;
+        }
+        if (metadata.getSize() > WHOLE_READ_MAX_BYTES) {
+            // Archivo grande: se copia por bloques con un buffer de tamaño fijo, nunca entero en
+            // el heap (readAllBytes además falla por encima de 2 GB).
+            FileChannel channel = FileChannel.open(file, StandardOpenOption.READ);
+            response.sendFileResponse(metadata, FileRegion.copying(channel, 0, channel.size()));
+            return;
+        }
+        byte[] fileData = readFileData(file);
+        response.sendFileResponse(metadata, fileData);
+    }
+
+    /**
+     * Atiende el encabezado Range: 206 con uno o varios rangos, o 416 si ninguno cae en el
+     * archivo. Devuelve false si el encabezado se ignora (inválido, demasiados rangos o un
+     * If-Range que no coincide) y hay que enviar el archivo completo.
+     */
+    private boolean serveRanges(HttpRequest request, String range, FileMetadata metadata, HttpResponse response)
+            throws IOException {
+        String ifRange = request.getHeaders().get(HttpHeaders.Known.IF_RANGE);
+        if (ifRange != null && !metadata.matchesIfRange(ifRange)) {
+            return false; // El cliente tiene otra versión: necesita el archivo entero
+        }
+        FileChannel channel = FileChannel.open(metadata.getPath(), StandardOpenOption.READ);
+        try {
+            long size = channel.size();
+            long[] ranges = ByteRanges.parse(range, size);
+            if (ranges == null) {
+                channel.close();
+                return false;
+            }
+            if (ranges.length == 0) {
+                channel.close();
+                unsatisfiable.increment();
+                response.sendRangeNotSatisfiable(size);
+                return true;
+            }
+            partial.increment();
+            if (ranges.length == 2) {
+                response.sendPartialResponse(metadata, channel, ranges[0], ranges[1] - ranges[0] + 1, size);
+            } else {
+                response.sendMultipartResponse(metadata, channel, ranges, size);
+            }
+            return true;
+        } catch (IOException | RuntimeException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Si el archivo tiene precomprimido y el cliente acepta gzip, envía el "archivo.gz" tal
+     * cual (o su 304) y devuelve true: no se comprime nada al atender la solicitud. Sin
+     * precomprimido, sin gzip en Accept-Encoding o con Range se sigue con el original.
+     */
+    private boolean serveSidecar(HttpRequest request, FileMetadata metadata, HttpResponse response)
+            throws IOException {
+        FileMetadata sidecar = metadata.getGzipSidecar();
+        if (sidecar == null) {
+            return false;
+        }
+        response.setVaryAcceptEncoding(true);
+        if (request.getHeaders().contains(HttpHeaders.Known.RANGE)
+                || !CompressedVariantCache.acceptsGzip(request.getHeaders().get(HttpHeaders.Known.ACCEPT_ENCODING))) {
+            return false;
+        }
+        if (isNotModified(request, sidecar)) {
+            sendNotModified(sidecar, response);
+            return true;
+        }
+        try {
+            CachedFile cached = fileCache == null ? null : fileCache.get(sidecar.getPath());
+            if (cached != null && cached.getData().length != sidecar.getSize()) {
+                return false; // El .gz cambió y los metadatos todavía no: se envía el original
+            }
+            if (cached != null) {
+                response.sendFileResponse(sidecar, ByteBuffer.wrap(cached.getData()));
+            } else {
+                serveFile(request, sidecar, response);
+            }
+        } catch (NoSuchFileException e) {
+            return false; // Se borró después de detectarlo: se envía el original
+        }
+        sidecarsServed.increment();
+        return true;
+    }
+
+    // Busca el precomprimido al armar los metadatos (una vez por versión del archivo) y cada
+    // sidecarRevalidateMillis: así un .gz que aparece, se regenera o se borra se nota aunque
+    // el original no cambie.
+    private FileMetadata withSidecar(FileMetadata metadata) throws IOException {
+        return precompressed ? metadata.findGzipSidecar(System.currentTimeMillis()) : metadata;
+    }
+
+    private boolean isSidecarStale(FileMetadata metadata) {
+        return precompressed && System.currentTimeMillis() - metadata.getSidecarCheckedAt() >= sidecarRevalidateMillis;
+    }
+
+    /**
+     * Si el archivo admite compresión y el cliente acepta gzip o deflate, envía la variante
+     * comprimida (o su 304) y devuelve true. content es el contenido ya en memoria (en el
+     * heap o fuera de él), o null para leerlo del archivo si la variante no está en caché.
+     * Las solicitudes con Range reciben la representación sin comprimir.
+     */
+    private boolean serveCompressed(HttpRequest request, FileMetadata metadata, ByteBuffer content,
+                                    HttpResponse response) throws IOException {
+        if (!isCompressible(metadata)) {
+            return false;
+        }
+        response.setVaryAcceptEncoding(true);
+        if (request.getHeaders().contains(HttpHeaders.Known.RANGE)) {
+            return false;
+        }
+        String encoding = CompressedVariantCache.negotiate(request.getHeaders().get(HttpHeaders.Known.ACCEPT_ENCODING));
+        if (encoding == null) {
+            return false;
+        }
+        CompressedVariant variant = compression.get(metadata, encoding, content);
+        if (variant == null) {
+            return false; // Comprimido no achica: se envía tal cual
+        }
+        FileMetadata encoded = variant.getMetadata();
+        if (isNotModified(request, encoded)) {
+            sendNotModified(encoded, response);
+        } else {
+            response.sendFileResponse(encoded, ByteBuffer.wrap(variant.getData()));
+        }
+        return true;
+    }
+
+    private boolean isCompressible(FileMetadata metadata) {
+        return compression != null && metadata.getContentEncoding() == null && compression.isCompressible(metadata);
+    }
+
+    // If-None-Match tiene prioridad: si está, If-Modified-Since no se mira.
+    private static boolean isNotModified(HttpRequest request, FileMetadata file) {
+        String ifNoneMatch = request.getHeaders().get(HttpHeaders.Known.IF_NONE_MATCH);
+        if (ifNoneMatch != null) {
+            return file.matchesAnyEtag(ifNoneMatch);
+        }
+        String ifModifiedSince = request.getHeaders().get(HttpHeaders.Known.IF_MODIFIED_SINCE);
+        return ifModifiedSince != null && file.isUnmodifiedSince(ifModifiedSince);
+    }
+
+    private void sendNotModified(FileMetadata file, HttpResponse response) {
+        notModified.increment();
+        response.sendNotModified(file);
+    }
+
+
+    private byte[] readFileData(Path file) throws IOException {
+        return Files.readAllBytes(file);
+    }
+
+}
+
+
+/**
+ * Caché de archivos mapeados en memoria (FileChannel.map), por ruta. Todas las
+ * solicitudes del mismo archivo escriben vistas del mismo MappedByteBuffer, que
+ * comparte las páginas con la caché del sistema: no hay copias en el heap.
+ * Cada acceso compara tamaño y fecha de modificación para rehacer el mapeo si el
+ * archivo cambió, y al superar el presupuesto se desalojan los menos usados.
+ * Java no permite desmapear explícitamente: un mapeo desalojado se libera cuando el
+ * GC recolecta el buffer y las vistas que aún se estén enviando. Los archivos deben
+ * reemplazarse (renombrar uno nuevo encima), no truncarse en el lugar.
+ */
+class MappedFileCache {
+    private final long maxBytes;
+    private final ConcurrentHashMap<Path, MappedFile> mappings = new ConcurrentHashMap<>();
+    private final AtomicLong mappedBytes = new AtomicLong();
+    private final AtomicLong clock = new AtomicLong();
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder maps = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+
+    public MappedFileCache(long maxBytes) {
+        this.maxBytes = maxBytes;
+    }
+
+    /**
+     * Vista propia (duplicate) del mapeo vigente del archivo, o null si no se puede mapear:
+     * un MappedByteBuffer no supera los 2 GB y el archivo no puede exceder el presupuesto.
+     */
+    public ByteBuffer get(Path file) throws IOException {
+        Path path = file.toAbsolutePath().normalize();
+        BasicFileAttributes attributes = Files.readAttributes(path, BasicFileAttributes.class);
+        long size = attributes.size();
+        FileTime lastModified = attributes.lastModifiedTime();
+        if (size > Integer.MAX_VALUE || size > maxBytes) {
+            return null;
+        }
+
+        MappedFile current = mappings.get(path);
+        if (current != null && current.matches(size, lastModified)) {
+            hits.increment();
+        } else {
+            current = mappings.compute(path, (key, previous) -> {
+                if (previous != null && previous.matches(size, lastModified)) {
+                    return previous; // Otro hilo ya lo remapeó
+                }
+                MappedFile fresh = map(key, size, lastModified);
+                mappedBytes.addAndGet(size - (previous == null ? 0 : previous.size));
+                return fresh;
+            });
+            evictIfNeeded(path);
+        }
+        current.lastAccess = clock.incrementAndGet();
+        return current.buffer.duplicate();
+    }
+
+    public String stats() {
+        return "mapeos=" + mappings.size()
+                + " bytes=" + mappedBytes.get()
+                + " aciertos=" + hits.sum()
+                + " mapeados=" + maps.sum()
+                + " desalojos=" + evictions.sum();
+    }
+
+    private MappedFile map(Path path, long size, FileTime lastModified) {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            maps.increment();
+            // El mapeo sigue siendo válido después de cerrar el canal.
+            return new MappedFile(channel.map(FileChannel.MapMode.READ_ONLY, 0, size), size, lastModified);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    // Desaloja los mapeos usados hace más tiempo hasta volver al presupuesto.
+    private void evictIfNeeded(Path justMapped) {
+        while (mappedBytes.get() > maxBytes) {
+            Map.Entry<Path, MappedFile> oldest = null;
+            for (Map.Entry<Path, MappedFile> entry : mappings.entrySet()) {
+                if (!entry.getKey().equals(justMapped)
+                        && (oldest == null || entry.getValue().lastAccess < oldest.getValue().lastAccess)) {
+                    oldest = entry;
+                }
+            }
+            if (oldest == null) {
+                return;
+            }
+            if (mappings.remove(oldest.getKey(), oldest.getValue())) {
+                mappedBytes.addAndGet(-oldest.getValue().size);
+                evictions.increment();
+            }
+        }
+    }
+
+    private static final class MappedFile {
+        final MappedByteBuffer buffer;
+        final long size;
+        final FileTime lastModified;
+        volatile long lastAccess;
+
+        MappedFile(MappedByteBuffer buffer, long size, FileTime lastModified) {
+            this.buffer = buffer;
+            this.size = size;
+            this.lastModified = lastModified;
+        }
+
+        boolean matches(long size, FileTime lastModified) {
+            return this.size == size && this.lastModified.equals(lastModified);
+        }
+    }
+}
+
+
+/**
+ * Caché en memoria del contenido de los archivos estáticos, por ruta normalizada.
+ * Un acierto no toca el sistema de archivos: ni exists/isFile ni la lectura. Cada
+ * entrada se revalida (tamaño y fecha de modificación) a lo sumo una vez por
+ * intervalo. Para hacer lugar se desalojan las usadas hace más tiempo, pero la
+ * CachePolicy decide antes si el archivo nuevo merece desplazarlas; si no, se sirve
+ * sin guardarse. Las búsquedas van a un mapa concurrente; el orden de uso lo lleva un
+ * LinkedHashMap bajo lock, así la víctima es siempre la cabeza y no hace falta recorrer
+ * las entradas.
+ */
+class StaticFileCache {
+    // Tamaño medio supuesto de un archivo, para dimensionar el contador de frecuencias.
+    private static final long TYPICAL_FILE_BYTES = 8 * 1024;
+
+    private final long maxBytes;
+    private final long maxFileBytes;
+    private final long revalidateMillis;
+    private final CachePolicy policy;
+    private final ConcurrentHashMap<Path, CachedFile> entries = new ConcurrentHashMap<>();
+    // Las mismas entradas en orden de uso, la usada hace más tiempo primero. Su lock protege
+    // también las altas y bajas de entries y cachedBytes.
+    private final LinkedHashMap<Path, CachedFile> recency = new LinkedHashMap<>(64, 0.75f, true);
+    private final AtomicLong cachedBytes = new AtomicLong();
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+    private final LongAdder invalidations = new LongAdder();
+    private final LongAdder rejections = new LongAdder();
+
+    public StaticFileCache(long maxBytes, long maxFileBytes, long revalidateMillis, CachePolicy policy) {
+        this.maxBytes = maxBytes;
+        this.maxFileBytes = Math.min(maxFileBytes, maxBytes);
+        this.revalidateMillis = revalidateMillis;
+        this.policy = policy;
+    }
+
+    /** Cantidad aproximada de entradas que caben en el presupuesto. */
+    static int expectedEntries(long maxBytes) {
+        return (int) Math.min(1 << 20, Math.max(64, maxBytes / TYPICAL_FILE_BYTES));
+    }
+
+    /**
+     * Entrada vigente para la ruta, leyendo el archivo si no estaba o cambió.
+     * Devuelve null si el archivo no existe, no es un archivo regular o es demasiado grande.
+     */
+    public CachedFile get(Path path) throws IOException {
+        long now = System.currentTimeMillis();
+        CachedFile entry = entries.get(path);
+        if (entry != null) {
+            if (now - entry.validatedAt >= revalidateMillis) {
+                if (!entry.matches(readAttributes(path))) {
+                    invalidations.increment();
+                    remove(path, entry);
+                    return load(path, now);
+                }
+                entry.validatedAt = now;
+            }
+            synchronized (recency) {
+                recency.get(path); // Pasa al final del orden de uso
+            }
+            policy.recordAccess(path);
+            hits.increment();
+            return entry;
+        }
+        return load(path, now);
+    }
+
+    public String stats() {
+        long hitCount = hits.sum();
+        long lookups = hitCount + misses.sum();
+        return "entradas=" + entries.size()
+                + " bytes=" + cachedBytes.get()
+                + " aciertos=" + hitCount
+                + " fallos=" + misses.sum()
+                + " desalojos=" + evictions.sum()
+                + " invalidaciones=" + invalidations.sum()
+                + " rechazos=" + rejections.sum()
+                + " politica=" + policy.name()
+                + " tasa-aciertos=" + (lookups == 0 ? "0" : String.format("%.1f%%", 100.0 * hitCount / lookups));
+    }
+
+    private CachedFile load(Path path, long now) throws IOException {
+        misses.increment();
+        BasicFileAttributes attributes = readAttributes(path);
+        if (attributes == null || !attributes.isRegularFile() || attributes.size() > maxFileBytes) {
+            return null; // Tampoco cuenta para la política: nunca podría cachearse
+        }
+        policy.recordAccess(path);
+        CachedFile loaded = new CachedFile(Files.readAllBytes(path), attributes.lastModifiedTime(), now);
+        synchronized (recency) {
+            remove(path, entries.get(path)); // Otra carga concurrente de la misma ruta
+            if (!makeRoom(path, loaded.getData().length)) {
+                rejections.increment();
+                return loaded; // Se sirve esta vez, pero no desplaza a archivos más pedidos
+            }
+            entries.put(path, loaded);
+            recency.put(path, loaded);
+            cachedBytes.addAndGet(loaded.getData().length);
+        }
+        return loaded;
+    }
+
+    // Hace lugar para size bytes con las entradas de la cabeza del orden de uso. La política
+    // compara antes al candidato con cada una de esas víctimas: si pierde con alguna, no se
+    // desaloja ninguna y devuelve false. Con el lock de recency tomado.
+    private boolean makeRoom(Path candidate, long size) {
+        long excess = cachedBytes.get() + size - maxBytes;
+        List<Map.Entry<Path, CachedFile>> victims = new ArrayList<>();
+        for (Iterator<Map.Entry<Path, CachedFile>> oldest = recency.entrySet().iterator();
+                excess > 0 && oldest.hasNext(); ) {
+            Map.Entry<Path, CachedFile> victim = oldest.next();
+            if (!policy.admit(candidate, victim.getKey())) {
+                return false;
+            }
+            victims.add(victim);
+            excess -= victim.getValue().getData().length;
+        }
+        for (Map.Entry<Path, CachedFile> victim : victims) {
+            recency.remove(victim.getKey());
+            entries.remove(victim.getKey(), victim.getValue());
+            cachedBytes.addAndGet(-victim.getValue().getData().length);
+            evictions.increment();
+        }
+        return true;
+    }
+
+    private void remove(Path path, CachedFile entry) {
+        synchronized (recency) {
+            if (entry != null && entries.remove(path, entry)) {
+                recency.remove(path);
+                cachedBytes.addAndGet(-entry.getData().length);
+            }
+        }
+    }
+
+    private static BasicFileAttributes readAttributes(Path path) throws IOException {
+        try {
+            return Files.readAttributes(path, BasicFileAttributes.class);
+        } catch (NoSuchFileException e) {
+            return null;
+        }
+    }
+}
+
+/**
+ * Contenido de un archivo en la caché junto con la versión (tamaño y fecha) que se leyó.
+ */
+class CachedFile {
+    private final byte[] data;
+    private final FileTime lastModified;
+    volatile long validatedAt;
+    // Tipo de contenido y validadores, resueltos al primer envío.
+    volatile FileMetadata metadata;
+    // Respuesta completa ya serializada (solo archivos pequeños); se arma al primer envío.
+    volatile PrebuiltResponse prebuiltResponse;
+
+    CachedFile(byte[] data, FileTime lastModified, long validatedAt) {
+        this.data = data;
+        this.lastModified = lastModified;
+        this.validatedAt = validatedAt;
+    }
+
+    public byte[] getData() {
+        return data;
+    }
+
+    public FileTime getLastModified() {
+        return lastModified;
+    }
+
+    boolean matches(BasicFileAttributes attributes) {
+        return attributes != null && attributes.isRegularFile()
+                && attributes.size() == data.length && attributes.lastModifiedTime().equals(lastModified);
+    }
+}
+
+
+/**
+ * Caché negativa: rutas que no existían, para que un escáner que insiste con URLs
+ * inexistentes no cueste consultas al disco. Todas comparten una única respuesta 404 ya
+ * serializada (sin la ruta en el cuerpo). Cada entrada vence a los ttlMillis y todas se
+ * descartan cuando aparece un archivo en la raíz de documentos (aviso del
+ * DocumentRootWatcher). Las consultas no toman locks; al guardar, un anillo con el orden
+ * de llegada hace que cada ruta nueva reemplace a la más vieja cuando la caché está llena.
+ */
+class NotFoundCache {
+    // Las rutas más largas no se guardan: no vale la pena retener claves de hasta 16 KB.
+    private static final int MAX_PATH_LENGTH = 1024;
+
+    private final long ttlMillis;
+    private final ConcurrentHashMap<String, Entry> entries = new ConcurrentHashMap<>();
+    // Anillo FIFO de las entradas guardadas; next es la posición de la más vieja. Se usa
+    // también como lock de las escrituras.
+    private final Entry[] order;
+    private int next;
+    private final PrebuiltResponse notFound =
+            PrebuiltResponse.forError("404", "Not Found", "Archivo no encontrado.");
+    // Cambia con cada invalidación: una ruta comprobada antes no se guarda después.
+    private final AtomicLong generation = new AtomicLong();
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder stored = new LongAdder();
+    private final LongAdder invalidations = new LongAdder();
+
+    public NotFoundCache(int maxEntries, long ttlMillis) {
+        this.order = new Entry[maxEntries];
+        this.ttlMillis = ttlMillis;
+    }
+
+    /** La respuesta 404 que comparten todas las rutas guardadas. */
+    public PrebuiltResponse response() {
+        return notFound;
+    }
+
+    /** Si se sabe que la ruta no existe (entrada guardada y vigente). */
+    public boolean isKnownMissing(String fileName) {
+        Entry entry = entries.get(fileName);
+        if (entry == null) {
+            return false;
+        }
+        if (System.currentTimeMillis() >= entry.expiresAt) {
+            entries.remove(fileName, entry);
+            return false;
+        }
+        hits.increment();
+        return true;
+    }
+
+    /** Se lee antes de comprobar en el disco que la ruta no existe. */
+    public long generation() {
+        return generation.get();
+    }
+
+    /**
+     * Recuerda la ruta inexistente, salvo que desde la comprobación (generation
+     * leída antes) haya aparecido algún archivo.
+     */
+    public void put(String fileName, long checkedGeneration) {
+        if (fileName.length() > MAX_PATH_LENGTH) {
+            return;
+        }
+        Entry entry = new Entry(fileName, System.currentTimeMillis() + ttlMillis);
+        synchronized (order) {
+            Entry oldest = order[next];
+            if (oldest != null) {
+                entries.remove(oldest.fileName, oldest);
+            }
+            order[next] = entry;
+            next = (next + 1) % order.length;
+            entries.put(fileName, entry);
+        }
+        if (generation.get() != checkedGeneration) {
+            entries.remove(fileName, entry); // Apareció un archivo mientras tanto: puede ser este
+            return;
+        }
+        stored.increment();
+    }
+
+    /** Oyente del DocumentRootWatcher: un archivo nuevo puede ser cualquiera de las rutas. */
+    public void pathChanged(WatchEvent.Kind<?> kind, Path path) {
+        if (kind == StandardWatchEventKinds.ENTRY_CREATE || kind == StandardWatchEventKinds.OVERFLOW) {
+            generation.incrementAndGet();
+            synchronized (order) {
+                entries.clear();
+                Arrays.fill(order, null);
+            }
+            invalidations.increment();
+        }
+    }
+
+    public String stats() {
+        return "entradas=" + entries.size()
+                + " aciertos=" + hits.sum()
+                + " guardadas=" + stored.sum()
+                + " invalidaciones=" + invalidations.sum();
+    }
+
+    private static final class Entry {
+        final String fileName;
+        final long expiresAt;
+
+        Entry(String fileName, long expiresAt) {
+            this.fileName = fileName;
+            this.expiresAt = expiresAt;
+        }
+    }
+}
+
+/**
+ * Vigila la raíz de documentos con un WatchService y avisa a los oyentes de cada archivo
+ * o directorio creado, modificado o borrado, desde un hilo daemon propio. El WatchService
+ * no es recursivo: se registra cada subdirectorio, también los que se crean después.
+ * Un OVERFLOW (se perdieron eventos) se avisa con ruta null.
+ */
+class DocumentRootWatcher implements Runnable {
+
+    interface Listener {
+        void pathChanged(WatchEvent.Kind<?> kind, Path path);
+    }
+
+    private final WatchService service;
+    private final Map<WatchKey, Path> directories = new ConcurrentHashMap<>();
+    private final List<Listener> listeners = new CopyOnWriteArrayList<>();
+
+    private DocumentRootWatcher(WatchService service) {
+        this.service = service;
+    }
+
+    public static DocumentRootWatcher start(Path root) throws IOException {
+        DocumentRootWatcher watcher = new DocumentRootWatcher(root.getFileSystem().newWatchService());
+        watcher.registerTree(root.toAbsolutePath().normalize());
+        Thread thread = new Thread(watcher, "raiz-documentos");
+        thread.setDaemon(true);
+        thread.start();
+        return watcher;
+    }
+
+    public void addListener(Listener listener) {
+        listeners.add(listener);
+    }
+
+    @Override
+    public void run() {
+        try {
+            while (true) {
+                WatchKey key = service.take();
+                Path directory = directories.get(key);
+                for (WatchEvent<?> event : key.pollEvents()) {
+                    WatchEvent.Kind<?> kind = event.kind();
+                    Path path = kind == StandardWatchEventKinds.OVERFLOW || directory == null
+                            ? null : directory.resolve((Path) event.context());
+                    if (kind == StandardWatchEventKinds.ENTRY_CREATE && path != null && Files.isDirectory(path)) {
+                        registerTree(path);
+                    }
+                    for (Listener listener : listeners) {
+                        listener.pathChanged(path == null ? StandardWatchEventKinds.OVERFLOW : kind, path);
+                    }
+                }
+                if (!key.reset()) {
+                    directories.remove(key); // El directorio ya no existe
+                }
+            }
+        } catch (InterruptedException | ClosedWatchServiceException e) {
+            // Fin del vigilante
+        }
+    }
+
+    private void registerTree(Path root) {
+        try (Stream<Path> tree = Files.walk(root)) {
+            tree.filter(Files::isDirectory).forEach(directory -> {
+                try {
+                    directories.put(directory.register(service, StandardWatchEventKinds.ENTRY_CREATE,
+                            StandardWatchEventKinds.ENTRY_MODIFY, StandardWatchEventKinds.ENTRY_DELETE), directory);
+                } catch (IOException e) {
+                    System.err.println("No se puede vigilar " + directory + ": " + e.getMessage());
+                }
+            });
+        } catch (IOException | UncheckedIOException e) {
+            System.err.println("No se puede recorrer " + root + ": " + e.getMessage());
+        }
+    }
+}
+
+
+/**
+ * Tipos de contenido por extensión, leídos de un archivo con el formato de mime.types
+ * (el tipo seguido de sus extensiones; '#' inicia un comentario). Las extensiones se
+ * guardan en minúsculas en una tabla hash de direccionamiento abierto, y la búsqueda
+ * compara contra el nombre del archivo sin crear substrings ni pasarlo a minúsculas.
+ */
+final class MimeTypeRegistry {
+    static final String DEFAULT_TYPE = "application/octet-stream";
+
+    // Si no se encuentra el archivo: los tipos que el servidor siempre conoció, más texto plano.
+    private static final String[] BUILT_IN = {
+            "text/html html htm", "text/plain txt", "image/gif gif", "image/jpeg jpeg jpg"};
+
+    private final String[] extensions;
+    private final String[] types;
+    private final int mask;
+
+    private MimeTypeRegistry(Map<String, String> byExtension) {
+        int capacity = Integer.highestOneBit(Math.max(byExtension.size(), 8) * 2 - 1) << 1;
+        this.extensions = new String[capacity];
+        this.types = new String[capacity];
+        this.mask = capacity - 1;
+        for (Map.Entry<String, String> entry : byExtension.entrySet()) {
+            String extension = entry.getKey();
+            int slot = hash(extension, 0, extension.length()) & mask;
+            while (extensions[slot] != null) {
+                slot = (slot + 1) & mask;
+            }
+            extensions[slot] = extension;
+            types[slot] = entry.getValue();
+        }
+    }
+
+    public static MimeTypeRegistry load(Path file) throws IOException {
+        List<String> lines;
+        try {
+            lines = Files.readAllLines(file, StandardCharsets.UTF_8);
+        } catch (NoSuchFileException e) {
+            System.err.println("No se encontró " + file + ": se usan los tipos de contenido básicos.");
+            lines = Arrays.asList(BUILT_IN);
+        }
+        Map<String, String> byExtension = new HashMap<>();
+        for (String line : lines) {
+            int comment = line.indexOf('#');
+            StringTokenizer tokenizer = new StringTokenizer(comment < 0 ? line : line.substring(0, comment));
+            if (!tokenizer.hasMoreTokens()) {
+                continue;
+            }
+            String type = tokenizer.nextToken();
+            while (tokenizer.hasMoreTokens()) {
+                byExtension.put(tokenizer.nextToken().toLowerCase(Locale.ROOT), type);
+            }
+        }
+        return new MimeTypeRegistry(byExtension);
+    }
+
+    /** Tipo de contenido según la extensión del nombre (lo que sigue al último punto). */
+    public String forFileName(String fileName) {
+        int dot = fileName.lastIndexOf('.');
+        if (dot < 0 || fileName.indexOf('/', dot) >= 0) {
+            return DEFAULT_TYPE;
+        }
+        return lookup(fileName, dot + 1, fileName.length());
+    }
+
+    /** Tipo para la extensión name[start, end), sin distinguir mayúsculas. */
+    public String lookup(String name, int start, int end) {
+        int slot = hash(name, start, end) & mask;
+        String extension;
+        while ((extension = extensions[slot]) != null) {
+            if (equalsIgnoreCase(extension, name, start, end)) {
+                return types[slot];
+            }
+            slot = (slot + 1) & mask;
+        }
+        return DEFAULT_TYPE;
+    }
+
+    private static int hash(String name, int start, int end) {
+        int hash = 0;
+        for (int i = start; i < end; i++) {
+            hash = 31 * hash + toLowerAscii(name.charAt(i));
+        }
+        return hash ^ (hash >>> 16);
+    }
+
+    // extension ya está en minúsculas.
+    private static boolean equalsIgnoreCase(String extension, String name, int start, int end) {
+        if (extension.length() != end - start) {
+            return false;
+        }
+        for (int i = 0; i < extension.length(); i++) {
+            if (extension.charAt(i) != toLowerAscii(name.charAt(start + i))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static char toLowerAscii(char c) {
+        return c >= 'A' && c <= 'Z' ? (char) (c + ('a' - 'A')) : c;
+    }
+}
+
+
+/**
+ * Índice en memoria de la raíz de documentos: un trie de rutas construido al arrancar,
+ * con los metadatos de cada archivo. Resolver una ruta no hace llamadas al sistema ni
+ * reserva memoria. Cada instantánea es inmutable; el hilo del DocumentRootWatcher arma
+ * la siguiente copiando solo los nodos del camino que cambió y la publica de una vez
+ * (campo volatile), así que un lector ve siempre una versión completa.
+ */
+class DocumentRootIndex {
+    private final Path root;
+    private final MimeTypeRegistry mimeTypes;
+    private final boolean precompressed;
+    private volatile IndexNode snapshot;
+    private final LongAdder lookups = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final AtomicLong updates = new AtomicLong();
+    private final AtomicLong rebuilds = new AtomicLong();
+
+    private DocumentRootIndex(Path root, MimeTypeRegistry mimeTypes, boolean precompressed, IndexNode snapshot) {
+        this.root = root;
+        this.mimeTypes = mimeTypes;
+        this.precompressed = precompressed;
+        this.snapshot = snapshot;
+    }
+
+    /**
+     * @param precompressed si cada archivo lleva los metadatos de su "archivo.gz", cuando lo hay
+     */
+    public static DocumentRootIndex build(Path root, MimeTypeRegistry mimeTypes, boolean precompressed)
+            throws IOException {
+        Path absoluteRoot = root.toAbsolutePath().normalize();
+        return new DocumentRootIndex(absoluteRoot, mimeTypes, precompressed,
+                IndexNode.scan(absoluteRoot, mimeTypes, precompressed));
+    }
+
+    /** Metadatos del archivo para la ruta de la solicitud ("/dir/archivo"), o null si no existe. */
+    public FileMetadata lookup(String fileName) {
+        lookups.increment();
+        FileMetadata metadata = snapshot.find(fileName);
+        if (metadata == null) {
+            misses.increment();
+        }
+        return metadata;
+    }
+
+    /** Oyente del DocumentRootWatcher: corre siempre en su hilo, así que no hay escritores concurrentes. */
+    public void pathChanged(WatchEvent.Kind<?> kind, Path path) {
+        try {
+            if (path == null) {
+                snapshot = IndexNode.scan(root, mimeTypes, precompressed); // Se perdieron eventos: se recorre todo de nuevo
+                rebuilds.incrementAndGet();
+                return;
+            }
+            String[] segments = segmentsOf(root.relativize(path));
+            BasicFileAttributes attributes = FileMetadata.readAttributes(path);
+            IndexNode replacement = null;
+            if (attributes != null && attributes.isDirectory()) {
+                if (kind == StandardWatchEventKinds.ENTRY_MODIFY) {
+                    return; // Los cambios de su contenido llegan como avisos propios
+                }
+                replacement = IndexNode.scan(path, mimeTypes, precompressed);
+            } else if (attributes != null && attributes.isRegularFile()) {
+                replacement = IndexNode.file(describe(path, attributes));
+            }
+            snapshot = snapshot.with(segments, 0, replacement);
+            updates.incrementAndGet();
+            String name = path.getFileName().toString();
+            if (precompressed && name.endsWith(FileMetadata.SIDECAR_SUFFIX)) {
+                // Cambió un precomprimido: el original lo vuelve a buscar
+                Path original = path.resolveSibling(
+                        name.substring(0, name.length() - FileMetadata.SIDECAR_SUFFIX.length()));
+                BasicFileAttributes originalAttributes = FileMetadata.readAttributes(original);
+                if (originalAttributes != null && originalAttributes.isRegularFile()) {
+                    snapshot = snapshot.with(segmentsOf(root.relativize(original)), 0,
+                            IndexNode.file(describe(original, originalAttributes)));
+                }
+            }
+        } catch (IOException | IllegalArgumentException e) {
+            System.err.println("No se pudo actualizar el índice para " + path + ": " + e.getMessage());
+        }
+    }
+
+    public String stats() {
+        return "busquedas=" + lookups.sum()
+                + " inexistentes=" + misses.sum()
+                + " actualizaciones=" + updates.get()
+                + " reconstrucciones=" + rebuilds.get();
+    }
+
+    private FileMetadata describe(Path path, BasicFileAttributes attributes) throws IOException {
+        FileMetadata metadata = FileMetadata.of(path, attributes, mimeTypes);
+        return precompressed ? metadata.findGzipSidecar(System.currentTimeMillis()) : metadata;
+    }
+
+    private static String[] segmentsOf(Path relative) {
+        String[] segments = new String[relative.getNameCount()];
+        for (int i = 0; i < segments.length; i++) {
+            segments[i] = relative.getName(i).toString();
+        }
+        return segments;
+    }
+}
+
+/**
+ * Nodo inmutable del trie de la raíz de documentos. Un directorio tiene los nombres de
+ * sus hijos ordenados (búsqueda binaria comparando contra un tramo de la ruta, sin crear
+ * substrings); un archivo tiene sus metadatos.
+ */
+final class IndexNode {
+    private static final String[] NO_NAMES = new String[0];
+    private static final IndexNode[] NO_CHILDREN = new IndexNode[0];
+
+    private final String[] names;
+    private final IndexNode[] children;
+    private final FileMetadata file;
+
+    private IndexNode(String[] names, IndexNode[] children, FileMetadata file) {
+        this.names = names;
+        this.children = children;
+        this.file = file;
+    }
+
+    static IndexNode file(FileMetadata metadata) {
+        return new IndexNode(NO_NAMES, NO_CHILDREN, metadata);
+    }
+
+    /**
+     * Recorre el directorio y arma su subárbol (los enlaces a directorios no se siguen). Con
+     * precompressed, cada archivo con un "archivo.gz" al lado lo lleva en sus metadatos.
+     */
+    static IndexNode scan(Path directory, MimeTypeRegistry mimeTypes, boolean precompressed) throws IOException {
+        TreeMap<String, IndexNode> entries = new TreeMap<>();
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory)) {
+            for (Path child : stream) {
+                BasicFileAttributes attributes = FileMetadata.readAttributes(child);
+                if (attributes == null) {
+                    continue; // Se borró durante el recorrido
+                }
+                if (attributes.isDirectory() && !Files.isSymbolicLink(child)) {
+                    entries.put(child.getFileName().toString(), scan(child, mimeTypes, precompressed));
+                } else if (attributes.isRegularFile()) {
+                    entries.put(child.getFileName().toString(), file(FileMetadata.of(child, attributes, mimeTypes)));
+                }
+            }
+        }
+        if (precompressed) {
+            for (Map.Entry<String, IndexNode> entry : entries.entrySet()) {
+                IndexNode sidecar = entries.get(entry.getKey() + FileMetadata.SIDECAR_SUFFIX);
+                if (entry.getValue().file != null && sidecar != null && sidecar.file != null) {
+                    entry.setValue(file(entry.getValue().file.withGzipSidecar(sidecar.file)));
+                }
+            }
+        }
+        return new IndexNode(entries.keySet().toArray(NO_NAMES), entries.values().toArray(NO_CHILDREN), null);
+    }
+
+    /**
+     * Archivo en la ruta, que se recorre por tramos entre '/'. Los tramos vacíos se
+     * ignoran; "." y ".." no existen en el índice, así que no se sale de la raíz.
+     */
+    FileMetadata find(String fileName) {
+        IndexNode node = this;
+        int length = fileName.length();
+        int start = 0;
+        while (start < length) {
+            int end = fileName.indexOf('/', start);
+            if (end < 0) {
+                end = length;
+            }
+            if (end > start) {
+                int index = node.indexOf(fileName, start, end);
+                if (index < 0) {
+                    return null;
+                }
+                node = node.children[index];
+            }
+            start = end + 1;
+        }
+        return node.file;
+    }
+
+    /**
+     * Copia del trie con el nodo en segments[depth..] reemplazado (null lo quita). Solo se
+     * copian los nodos del camino; el resto se comparte con la instantánea anterior.
+     */
+    IndexNode with(String[] segments, int depth, IndexNode replacement) {
+        if (depth == segments.length) {
+            return replacement;
+        }
+        String name = segments[depth];
+        int index = Arrays.binarySearch(names, name);
+        IndexNode child = index >= 0 ? children[index] : null;
+        if (child == null && replacement == null) {
+            return this; // Nada que quitar
+        }
+        if (child == null) {
+            if (depth + 1 < segments.length) {
+                return this; // El directorio padre todavía no está en el índice: llegará su propio aviso
+            }
+            int insertAt = -index - 1;
+            String[] newNames = new String[names.length + 1];
+            IndexNode[] newChildren = new IndexNode[children.length + 1];
+            System.arraycopy(names, 0, newNames, 0, insertAt);
+            System.arraycopy(children, 0, newChildren, 0, insertAt);
+            newNames[insertAt] = name;
+            newChildren[insertAt] = replacement;
+            System.arraycopy(names, insertAt, newNames, insertAt + 1, names.length - insertAt);
+            System.arraycopy(children, insertAt, newChildren, insertAt + 1, children.length - insertAt);
+            return new IndexNode(newNames, newChildren, file);
+        }
+        IndexNode updated = child.with(segments, depth + 1, replacement);
+        if (updated == null) {
+            String[] newNames = new String[names.length - 1];
+            IndexNode[] newChildren = new IndexNode[children.length - 1];
+            System.arraycopy(names, 0, newNames, 0, index);
+            System.arraycopy(children, 0, newChildren, 0, index);
+            System.arraycopy(names, index + 1, newNames, index, names.length - index - 1);
+            System.arraycopy(children, index + 1, newChildren, index, children.length - index - 1);
+            return new IndexNode(newNames, newChildren, file);
+        }
+        IndexNode[] newChildren = children.clone();
+        newChildren[index] = updated;
+        return new IndexNode(names, newChildren, file);
+    }
+
+    private int indexOf(String path, int start, int end) {
+        int low = 0;
+        int high = names.length - 1;
+        while (low <= high) {
+            int middle = (low + high) >>> 1;
+            int comparison = compare(names[middle], path, start, end);
+            if (comparison < 0) {
+                low = middle + 1;
+            } else if (comparison > 0) {
+                high = middle - 1;
+            } else {
+                return middle;
+            }
+        }
+        return -1;
+    }
+
+    // Mismo orden que String.compareTo, contra path[start, end).
+    private static int compare(String name, String path, int start, int end) {
+        int length = end - start;
+        int common = Math.min(name.length(), length);
+        for (int i = 0; i < common; i++) {
+            int difference = name.charAt(i) - path.charAt(start + i);
+            if (difference != 0) {
+                return difference;
+            }
+        }
+        return name.length() - length;
+    }
+}
+
+/**
+ * Metadatos de un archivo, calculados una vez por versión del archivo (en el índice o
+ * en la entrada de caché): tamaño, fecha de modificación, tipo de contenido y los
+ * validadores de los GET condicionales (ETag y Last-Modified ya formateados).
+ */
+final class FileMetadata {
+    static final String SIDECAR_SUFFIX = ".gz";
+    private static final DateTimeFormatter HTTP_DATE =
+            DateTimeFormatter.ofPattern("EEE, dd MMM yyyy HH:mm:ss 'GMT'", Locale.US).withZone(ZoneOffset.UTC);
+
+    private final Path path;
+    private final long size;
+    private final long lastModifiedMillis;
+    private final String contentType;
+    private final String etag;
+    private final String lastModifiedHttpDate;
+    private final String contentEncoding;
+    private final FileMetadata gzipSidecar;
+    // Cuándo se buscó en disco el precomprimido (findGzipSidecar); 0 si nunca.
+    private final long sidecarCheckedAt;
+
+    private FileMetadata(Path path, long size, long lastModifiedMillis, String contentType) {
+        this.path = path;
+        this.size = size;
+        this.lastModifiedMillis = lastModifiedMillis;
+        this.contentType = contentType;
+        this.etag = "\"" + Long.toHexString(size) + "-" + Long.toHexString(lastModifiedMillis) + "\"";
+        this.lastModifiedHttpDate = HTTP_DATE.format(Instant.ofEpochMilli(lastModifiedMillis));
+        this.contentEncoding = null;
+        this.gzipSidecar = null;
+        this.sidecarCheckedAt = 0;
+    }
+
+    // El mismo archivo con su precomprimido, buscado en disco en sidecarCheckedAt.
+    private FileMetadata(FileMetadata source, FileMetadata gzipSidecar, long sidecarCheckedAt) {
+        this.path = source.path;
+        this.size = source.size;
+        this.lastModifiedMillis = source.lastModifiedMillis;
+        this.contentType = source.contentType;
+        this.etag = source.etag;
+        this.lastModifiedHttpDate = source.lastModifiedHttpDate;
+        this.contentEncoding = source.contentEncoding;
+        this.gzipSidecar = gzipSidecar;
+        this.sidecarCheckedAt = sidecarCheckedAt;
+    }
+
+    // Variante codificada (comprimida) del mismo archivo.
+    private FileMetadata(FileMetadata source, String contentEncoding, long size) {
+        this.path = source.path;
+        this.size = size;
+        this.lastModifiedMillis = source.lastModifiedMillis;
+        this.contentType = source.contentType;
+        // Cada representación lleva su propia etiqueta: los bytes son distintos.
+        this.etag = source.etag.substring(0, source.etag.length() - 1) + "-" + contentEncoding + "\"";
+        this.lastModifiedHttpDate = source.lastModifiedHttpDate;
+        this.contentEncoding = contentEncoding;
+        this.gzipSidecar = null;
+        this.sidecarCheckedAt = 0;
+    }
+
+    static FileMetadata of(Path path, BasicFileAttributes attributes, MimeTypeRegistry mimeTypes) {
+        return of(path, attributes.size(), attributes.lastModifiedTime(), mimeTypes);
+    }
+
+    static FileMetadata of(Path path, long size, FileTime lastModified, MimeTypeRegistry mimeTypes) {
+        return new FileMetadata(path, size, lastModified.toMillis(),
+                mimeTypes.forFileName(path.getFileName().toString()));
+    }
+
+    public Path getPath() {
+        return path;
+    }
+
+    public long getSize() {
+        return size;
+    }
+
+    public String getContentType() {
+        return contentType;
+    }
+
+    public String getEtag() {
+        return etag;
+    }
+
+    public String getLastModifiedHttpDate() {
+        return lastModifiedHttpDate;
+    }
+
+    /** Si los atributos leídos del disco son de esta versión del archivo (mismo tamaño y fecha). */
+    boolean matches(BasicFileAttributes attributes) {
+        return attributes.size() == size && attributes.lastModifiedTime().toMillis() == lastModifiedMillis;
+    }
+
+    /** Content-Encoding de esta representación; null si es el archivo tal cual. */
+    public String getContentEncoding() {
+        return contentEncoding;
+    }
+
+    /** Metadatos de la variante con la codificación dada, de size bytes. */
+    FileMetadata encodedAs(String contentEncoding, long size) {
+        return new FileMetadata(this, contentEncoding, size);
+    }
+
+    /** El "archivo.gz" que acompaña al original, listo para enviarse con Content-Encoding; null si no hay. */
+    public FileMetadata getGzipSidecar() {
+        return gzipSidecar;
+    }
+
+    /**
+     * Copia con sidecarFile (los metadatos del "archivo.gz") como precomprimido. Uno más
+     * viejo que el original quedó de una versión anterior y se ignora.
+     */
+    FileMetadata withGzipSidecar(FileMetadata sidecarFile) {
+        if (sidecarFile == null || sidecarFile.lastModifiedMillis < lastModifiedMillis) {
+            return gzipSidecar == null ? this : new FileMetadata(this, (FileMetadata) null, sidecarCheckedAt);
+        }
+        // Tipo del original; ETag y fecha propios del .gz, que puede regenerarse por separado.
+        FileMetadata sidecar = new FileMetadata(sidecarFile.path, sidecarFile.size,
+                sidecarFile.lastModifiedMillis, contentType).encodedAs(CompressedVariantCache.GZIP, sidecarFile.size);
+        return new FileMetadata(this, sidecar, sidecarCheckedAt);
+    }
+
+    /**
+     * Copia con el precomprimido que haya en disco junto al archivo (una consulta más),
+     * que recuerda now como el momento de la búsqueda.
+     */
+    FileMetadata findGzipSidecar(long now) throws IOException {
+        Path sidecarPath = path.resolveSibling(path.getFileName() + SIDECAR_SUFFIX);
+        BasicFileAttributes attributes = readAttributes(sidecarPath);
+        FileMetadata found = attributes == null || !attributes.isRegularFile() ? withGzipSidecar(null)
+                : withGzipSidecar(new FileMetadata(sidecarPath, attributes.size(),
+                        attributes.lastModifiedTime().toMillis(), contentType));
+        return new FileMetadata(found, found.gzipSidecar, now);
+    }
+
+    /** Cuándo se buscó el precomprimido en disco por última vez; 0 si nunca. */
+    long getSidecarCheckedAt() {
+        return sidecarCheckedAt;
+    }
+
+    /**
+     * If-None-Match: "*" o alguna etiqueta de la lista coincide. La comparación es débil
+     * (se ignora el prefijo W/), la que corresponde a un GET condicional.
+     */
+    boolean matchesAnyEtag(String ifNoneMatch) {
+        int length = ifNoneMatch.length();
+        int start = 0;
+        while (start < length) {
+            int end = ifNoneMatch.indexOf(',', start);
+            if (end < 0) {
+                end = length;
+            }
+            while (start < end && ifNoneMatch.charAt(start) == ' ') {
+                start++;
+            }
+            int tagEnd = end;
+            while (tagEnd > start && ifNoneMatch.charAt(tagEnd - 1) == ' ') {
+                tagEnd--;
+            }
+            if (ifNoneMatch.startsWith("W/", start)) {
+                start += 2;
+            }
+            if ((tagEnd - start == 1 && ifNoneMatch.charAt(start) == '*')
+                    || (tagEnd - start == etag.length() && ifNoneMatch.startsWith(etag, start))) {
+                return true;
+            }
+            start = end + 1;
+        }
+        return false;
+    }
+
+    /**
+     * If-Range: los rangos valen solo si el validador coincide con esta versión. Una
+     * etiqueta se compara de forma fuerte (una débil nunca coincide); una fecha tiene
+     * que ser exactamente la de Last-Modified.
+     */
+    boolean matchesIfRange(String ifRange) {
+        String validator = ifRange.trim();
+        if (validator.startsWith("\"") || validator.startsWith("W/")) {
+            return validator.equals(etag);
+        }
+        if (validator.equals(lastModifiedHttpDate)) {
+            return true;
+        }
+        try {
+            return ZonedDateTime.parse(validator, DateTimeFormatter.RFC_1123_DATE_TIME).toEpochSecond()
+                    == lastModifiedMillis / 1000;
+        } catch (DateTimeParseException e) {
+            return false;
+        }
+    }
+
+    /**
+     * If-Modified-Since: el archivo no cambió después de la fecha (con resolución de
+     * segundos, la de las fechas HTTP). Los navegadores devuelven el mismo texto de
+     * Last-Modified, que se reconoce sin interpretar la fecha.
+     */
+    boolean isUnmodifiedSince(String httpDate) {
+        if (httpDate.equals(lastModifiedHttpDate)) {
+            return true;
+        }
+        try {
+            long since = ZonedDateTime.parse(httpDate.trim(), DateTimeFormatter.RFC_1123_DATE_TIME).toEpochSecond();
+            return lastModifiedMillis / 1000 <= since;
+        } catch (DateTimeParseException e) {
+            return false; // Fecha inválida: se ignora el encabezado
+        }
+    }
+
+    static BasicFileAttributes readAttributes(Path path) throws IOException {
+        try {
+            return Files.readAttributes(path, BasicFileAttributes.class);
+        } catch (NoSuchFileException e) {
+            return null;
+        }
+    }
+}
+
+
+/**
+ * Caché de variantes comprimidas (gzip y deflate) de los archivos de tipos comprimibles,
+ * por ruta y versión: cada archivo se comprime una vez por versión y codificación, y
+ * después se sirve desde memoria. Una variante cuyo ETag de origen ya no coincide se
+ * vuelve a comprimir. Al superar el presupuesto se desalojan las usadas hace más tiempo.
+ * Los archivos que no achican al comprimirse se recuerdan para no volver a intentarlo.
+ * Las solicitudes que piden una variante mientras se comprime esperan ese resultado en
+ * lugar de comprimir otra vez.
+ */
+class CompressedVariantCache {
+    static final String GZIP = "gzip";
+    static final String DEFLATE = "deflate";
+    // Solo se comprime en memoria hasta este tamaño; los más grandes se envían sin comprimir.
+    private static final long MAX_SOURCE_BYTES = 4 * 1024 * 1024;
+
+    private final int minBytes;
+    private final long maxBytes;
+    private final ConcurrentHashMap<Path, Slot> gzipVariants = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<Path, Slot> deflateVariants = new ConcurrentHashMap<>();
+    // Las variantes ya comprimidas de ambas codificaciones en orden de uso, la usada hace más
+    // tiempo primero. Su lock protege también cachedBytes.
+    private final LinkedHashMap<Slot, Boolean> recency = new LinkedHashMap<>(64, 0.75f, true);
+    private final AtomicLong cachedBytes = new AtomicLong();
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder compressions = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+    private final LongAdder bytesSaved = new LongAdder();
+
+    public CompressedVariantCache(int minBytes, long maxBytes) {
+        this.minBytes = minBytes;
+        this.maxBytes = maxBytes;
+    }
+
+    /** Texto, JSON, XML, JavaScript y SVG, con tamaño entre el mínimo y MAX_SOURCE_BYTES. */
+    public boolean isCompressible(FileMetadata metadata) {
+        if (metadata.getSize() < minBytes || metadata.getSize() > MAX_SOURCE_BYTES) {
+            return false;
+        }
+        String type = metadata.getContentType();
+        return type.startsWith("text/") || type.endsWith("json") || type.endsWith("xml")
+                || type.endsWith("javascript") || type.equals("image/svg+xml");
+    }
+
+    /**
+     * Codificación a usar según Accept-Encoding: gzip o deflate, la de mayor q (gzip si
+     * empatan), o null si el cliente no acepta ninguna.
+     */
+    static String negotiate(String acceptEncoding) {
+        if (acceptEncoding == null) {
+            return null;
+        }
+        double[] qualities = qualities(acceptEncoding);
+        if (qualities[0] > 0 && qualities[0] >= qualities[1]) {
+            return GZIP;
+        }
+        return qualities[1] > 0 ? DEFLATE : null;
+    }
+
+    /** Si Accept-Encoding admite gzip, aunque el cliente prefiera otra codificación. */
+    static boolean acceptsGzip(String acceptEncoding) {
+        return acceptEncoding != null && qualities(acceptEncoding)[0] > 0;
+    }
+
+    // Valores q de gzip y deflate; las que no se nombran toman el de "*", o 0 si tampoco está.
+    private static double[] qualities(String acceptEncoding) {
+        double gzip = -1;
+        double deflate = -1;
+        double any = -1;
+        for (String item : acceptEncoding.split(",")) {
+            int semicolon = item.indexOf(';');
+            String coding = (semicolon < 0 ? item : item.substring(0, semicolon)).trim();
+            double quality = semicolon < 0 ? 1 : parseQuality(item.substring(semicolon + 1));
+            if (coding.equalsIgnoreCase(GZIP) || coding.equalsIgnoreCase("x-gzip")) {
+                gzip = quality;
+            } else if (coding.equalsIgnoreCase(DEFLATE)) {
+                deflate = quality;
+            } else if (coding.equals("*")) {
+                any = quality;
+            }
+        }
+        return new double[] {gzip < 0 ? Math.max(any, 0) : gzip, deflate < 0 ? Math.max(any, 0) : deflate};
+    }
+
+    /**
+     * Variante vigente del archivo en la codificación pedida, comprimiéndolo si hace falta
+     * (content si ya está en memoria, si no se lee el archivo). Null si comprimido no achica.
+     */
+    public CompressedVariant get(FileMetadata metadata, String encoding, ByteBuffer content) throws IOException {
+        ConcurrentHashMap<Path, Slot> variants = variantsFor(encoding);
+        Path path = metadata.getPath();
+        Slot mine = new Slot(path, encoding, metadata.getEtag());
+        while (true) {
+            Slot current = variants.get(path);
+            if (current != null && current.sourceEtag.equals(mine.sourceEtag)) {
+                // Ya comprimida o comprimiéndose en otro hilo: se usa (o se espera) ese resultado
+                CompressedVariant variant = current.await();
+                hits.increment();
+                synchronized (recency) {
+                    recency.get(current); // Pasa al final del orden de uso
+                }
+                return variant.isWorthwhile() ? variant : null;
+            }
+            if (current == null ? variants.putIfAbsent(path, mine) == null : variants.replace(path, current, mine)) {
+                if (current != null) {
+                    forget(current); // Otra versión del archivo
+                }
+                break;
+            }
+        }
+
+        CompressedVariant fresh;
+        try {
+            ByteBuffer source = content != null
+                    ? content.duplicate() : ByteBuffer.wrap(Files.readAllBytes(path));
+            int sourceLength = source.remaining();
+            byte[] compressed = compress(source, encoding);
+            compressions.increment();
+            boolean worthwhile = compressed.length < sourceLength;
+            fresh = new CompressedVariant(metadata.encodedAs(encoding, compressed.length),
+                    worthwhile ? compressed : null);
+            if (worthwhile) {
+                bytesSaved.add(sourceLength - compressed.length);
+            }
+        } catch (IOException | RuntimeException e) {
+            variants.remove(path, mine); // La próxima solicitud vuelve a intentarlo
+            mine.variant.completeExceptionally(e);
+            throw e;
+        }
+        mine.variant.complete(fresh);
+        synchronized (recency) {
+            if (variants.get(path) == mine) { // No la reemplazó otra versión mientras se comprimía
+                recency.put(mine, Boolean.TRUE);
+                cachedBytes.addAndGet(fresh.weight());
+                evictIfNeeded(mine);
+            }
+        }
+        return fresh.isWorthwhile() ? fresh : null;
+    }
+
+    public String stats() {
+        return "variantes=" + (gzipVariants.size() + deflateVariants.size())
+                + " bytes=" + cachedBytes.get()
+                + " aciertos=" + hits.sum()
+                + " compresiones=" + compressions.sum()
+                + " desalojos=" + evictions.sum()
+                + " bytes-ahorrados-al-comprimir=" + bytesSaved.sum();
+    }
+
+    private static byte[] compress(ByteBuffer source, String encoding) throws IOException {
+        ByteArrayOutputStream compressed = new ByteArrayOutputStream(source.remaining() / 2 + 64);
+        // "deflate" en HTTP es el formato zlib (RFC 1950), el que escribe DeflaterOutputStream.
+        try (OutputStream out = encoding.equals(GZIP)
+                ? new GZIPOutputStream(compressed) : new DeflaterOutputStream(compressed)) {
+            if (source.hasArray()) {
+                out.write(source.array(), source.arrayOffset() + source.position(), source.remaining());
+            } else {
+                // Fuera del heap (caché off-heap): se copia por bloques, sin duplicar el archivo
+                byte[] block = new byte[Math.min(source.remaining(), OutputQueue.FILE_COPY_BUFFER_SIZE)];
+                while (source.hasRemaining()) {
+                    int length = Math.min(block.length, source.remaining());
+                    source.get(block, 0, length);
+                    out.write(block, 0, length);
+                }
+            }
+        }
+        return compressed.toByteArray();
+    }
 
-        // Procesando las solicitudes HTTP en un ciclo infinito.
-        while (true) {
-            // Escuchando las solicitudes de conexión TCP.
-            Socket socketDeConexion = socketDeEscucha.accept();
+    private static double parseQuality(String parameters) {
+        String value = parameters.trim();
+        if (!value.startsWith("q=")) {
+            return 1;
+        }
+        try {
+            return Double.parseDouble(value.substring(2));
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
 
-            // Construye un objeto para procesar el mensaje de solicitud HTTP.
-            ClientRequestHandler requestHandler = new ClientRequestHandler(socketDeConexion);
+    private ConcurrentHashMap<Path, Slot> variantsFor(String encoding) {
+        return encoding.equals(GZIP) ? gzipVariants : deflateVariants;
+    }
+
+    // Deja de contar una variante que salió de su mapa; si todavía se comprimía, no se contaba.
+    private void forget(Slot slot) {
+        synchronized (recency) {
+            if (recency.remove(slot) != null) {
+                cachedBytes.addAndGet(-slot.weight());
+            }
+        }
+    }
+
+    // Desaloja desde la cabeza del orden de uso (de ambas codificaciones) hasta volver al
+    // presupuesto. Con el lock de recency tomado.
+    private void evictIfNeeded(Slot justAdded) {
+        Iterator<Slot> oldest = recency.keySet().iterator();
+        while (cachedBytes.get() > maxBytes && oldest.hasNext()) {
+            Slot victim = oldest.next();
+            if (victim == justAdded) {
+                continue;
+            }
+            oldest.remove();
+            variantsFor(victim.encoding).remove(victim.path, victim);
+            cachedBytes.addAndGet(-victim.weight());
+            evictions.increment();
+        }
+    }
+
+    /**
+     * Lugar de una versión del archivo en una codificación. Lo crea la solicitud que
+     * comprime; las que llegan mientras tanto esperan su resultado en variant.
+     */
+    private static final class Slot {
+        final Path path;
+        final String encoding;
+        final String sourceEtag;
+        final CompletableFuture<CompressedVariant> variant = new CompletableFuture<>();
+
+        Slot(Path path, String encoding, String sourceEtag) {
+            this.path = path;
+            this.encoding = encoding;
+            this.sourceEtag = sourceEtag;
+        }
 
-            // Crea un nuevo hilo para procesar la solicitud.
-            Thread hilo = new Thread(requestHandler);
+        // Variante comprimida; si la compresión falló, la misma excepción que recibió quien comprimía.
+        CompressedVariant await() throws IOException {
+            try {
+                return variant.join();
+            } catch (CompletionException e) {
+                if (e.getCause() instanceof IOException cause) {
+                    throw cause;
+                }
+                if (e.getCause() instanceof RuntimeException cause) {
+                    throw cause;
+                }
+                throw e;
+            }
+        }
 
-            // Inicia el hilo.
-            hilo.start();
+        // Solo se llama con la compresión terminada (las variantes en recency).
+        long weight() {
+            return variant.join().weight();
         }
     }
 }
 
 /**
- * Clase para manejar una solicitud HTTP entrante en un hilo separado.
- * Actúa como controlador principal para cada conexión de cliente,
- * delegando el procesamiento de la solicitud y la respuesta a otras clases.
+ * Archivo comprimido en una codificación; la versión del original la guarda su Slot.
  */
-class ClientRequestHandler implements Runnable {
-    private final Socket socket;
+class CompressedVariant {
+    private final FileMetadata metadata;
+    private final byte[] data;
 
-    public ClientRequestHandler(Socket socket) {
-        this.socket = socket;
+    CompressedVariant(FileMetadata metadata, byte[] data) {
+        this.metadata = metadata;
+        this.data = data;
     }
 
-    @Override
-    public void run() {
-        try {
-            processRequest();
-        } catch (Exception e) {
-            System.err.println("Error al procesar la solicitud: " + e.getMessage());
-        } finally {
+    /** Metadatos de la variante: ETag propio, Content-Encoding y tamaño comprimido. */
+    public FileMetadata getMetadata() {
+        return metadata;
+    }
+
+    public byte[] getData() {
+        return data;
+    }
+
+    /** false si comprimido no achicaba: solo se recuerda para no volver a intentarlo. */
+    boolean isWorthwhile() {
+        return data != null;
+    }
+
+    long weight() {
+        return data == null ? 0 : data.length;
+    }
+}
+
+
+/**
+ * Interpreta el encabezado Range ("bytes=0-99, 200-, -500") contra el tamaño del
+ * archivo. Los rangos se devuelven como pares (inicio, fin inclusivo) en un long[]:
+ * vacío si ninguno es satisfacible (416) y null si el encabezado se ignora (unidad
+ * desconocida, sintaxis inválida o más de MAX_RANGES rangos, para que unos pocos bytes
+ * de solicitud no pidan el archivo muchas veces).
+ */
+final class ByteRanges {
+    static final int MAX_RANGES = 16;
+
+    private ByteRanges() {
+    }
+
+    static long[] parse(String header, long size) {
+        String value = header.trim();
+        if (!value.regionMatches(true, 0, "bytes=", 0, 6)) {
+            return null;
+        }
+        long[] ranges = new long[2 * MAX_RANGES];
+        int count = 0;
+        int specs = 0;
+        for (String spec : value.substring(6).split(",")) {
+            spec = spec.trim();
+            if (spec.isEmpty()) {
+                continue;
+            }
+            if (++specs > MAX_RANGES) {
+                return null;
+            }
+            int dash = spec.indexOf('-');
+            if (dash < 0) {
+                return null;
+            }
+            long first;
+            long last;
             try {
-                socket.close(); // Asegurar que el socket se cierre siempre
-            } catch (IOException e) {
-                System.err.println("Error al cerrar el socket: " + e.getMessage());
+                if (dash == 0) { // Sufijo: los últimos N bytes
+                    long suffix = parseDigits(spec.substring(1));
+                    if (suffix == 0 || size == 0) {
+                        continue;
+                    }
+                    first = Math.max(0, size - suffix);
+                    last = size - 1;
+                } else {
+                    first = parseDigits(spec.substring(0, dash));
+                    last = dash == spec.length() - 1 ? Long.MAX_VALUE : parseDigits(spec.substring(dash + 1));
+                    if (last < first) {
+                        return null;
+                    }
+                    if (first >= size) {
+                        continue; // No satisfacible
+                    }
+                    last = Math.min(last, size - 1);
+                }
+            } catch (NumberFormatException e) {
+                return null;
             }
+            ranges[2 * count] = first;
+            ranges[2 * count + 1] = last;
+            count++;
+        }
+        if (specs == 0) {
+            return null;
         }
+        return Arrays.copyOf(ranges, 2 * count);
     }
 
-    private void processRequest() throws Exception {
-        InputStream is = socket.getInputStream();
-        DataOutputStream os = new DataOutputStream(socket.getOutputStream());
-        BufferedReader br = new BufferedReader(new InputStreamReader(is));
+    private static long parseDigits(String digits) {
+        for (int i = 0; i < digits.length(); i++) {
+            if (digits.charAt(i) < '0' || digits.charAt(i) > '9') {
+                throw new NumberFormatException(digits);
+            }
+        }
+        return Long.parseLong(digits); // Vacío o desbordado también lanza NumberFormatException
+    }
+}
 
-        // 1. Parsear la solicitud HTTP
-        HttpRequest request = new HttpRequest(br);
-        request.parseRequest(); // Analiza la solicitud desde el BufferedReader
 
-        // Imprimir la solicitud en consola (Parte I)
-        request.printRequestContent();
+/**
+ * Política de admisión de una caché que desaloja por antigüedad de uso (LRU): ve todos
+ * los accesos y, cuando hace falta lugar, decide si el candidato entra a costa de la
+ * entrada usada hace más tiempo.
+ */
+interface CachePolicy {
 
-        // 2. Manejar la solicitud y generar la respuesta
-        HttpResponse response = new HttpResponse(os);
-        HttpFileHandler fileHandler = new HttpFileHandler();
+    String name();
 
-        if (request.getMethod().equals("GET")) {
-            String fileName = request.getFileName();
-            if (fileName.equals("/")) {
-                fileName = "/index.html"; // Servir index.html por defecto
+    /** Registra una búsqueda de la clave, haya sido acierto o fallo; solo de claves cacheables. */
+    void recordAccess(Object key);
+
+    /** true si el candidato debe reemplazar a la víctima. */
+    boolean admit(Object candidate, Object victim);
+
+    static CachePolicy create(String name, int expectedEntries) {
+        if (name.equals("lru")) {
+            return new LruPolicy();
+        }
+        return new TinyLfuPolicy(expectedEntries);
+    }
+}
+
+/**
+ * LRU simple: todo archivo nuevo entra y desplaza al usado hace más tiempo.
+ */
+final class LruPolicy implements CachePolicy {
+
+    @Override
+    public String name() {
+        return "lru";
+    }
+
+    @Override
+    public void recordAccess(Object key) {
+    }
+
+    @Override
+    public boolean admit(Object candidate, Object victim) {
+        return true;
+    }
+}
+
+/**
+ * TinyLFU: el candidato entra solo si su frecuencia estimada supera la de la víctima.
+ * Así un recorrido de archivos pedidos una sola vez no vacía la caché de los más
+ * populares, que con LRU simple se perderían.
+ */
+final class TinyLfuPolicy implements CachePolicy {
+    private final FrequencySketch sketch;
+
+    TinyLfuPolicy(int expectedEntries) {
+        this.sketch = new FrequencySketch(expectedEntries);
+    }
+
+    @Override
+    public String name() {
+        return "tinylfu";
+    }
+
+    @Override
+    public void recordAccess(Object key) {
+        sketch.increment(key);
+    }
+
+    @Override
+    public boolean admit(Object candidate, Object victim) {
+        return sketch.frequency(candidate) > sketch.frequency(victim);
+    }
+}
+
+/**
+ * Estimador de frecuencias count-min con contadores de 4 bits (16 por long) y 4 filas.
+ * La frecuencia de una clave es el mínimo de sus 4 contadores, que solo puede
+ * sobreestimarse por colisiones. Cada 10 accesos por entrada esperada todos los
+ * contadores se dividen a la mitad (envejecimiento), así lo que dejó de pedirse pierde
+ * peso frente a lo popular ahora.
+ * Se registra en cada acierto de la caché, así que no usa locks: cada contador se
+ * actualiza con CAS sobre su long y el envejecimiento lo hace un solo hilo mientras los
+ * demás siguen contando (se puede perder algún incremento, lo que no cambia las
+ * frecuencias de forma apreciable).
+ */
+final class FrequencySketch {
+    private static final long[] SEEDS = {
+            0xc3a5c85c97cb3127L, 0xb492b66fbe98f273L, 0x9ae16a3b2f90404fL, 0xcbf29ce484222325L};
+    private static final long RESET_MASK = 0x7777777777777777L;
+    // Se mira el total de incrementos una de cada tantas veces: sumar el LongAdder recorre sus celdas.
+    private static final int SAMPLE_CHECK_INTERVAL = 16;
+
+    private final AtomicLongArray table;
+    private final int tableMask;
+    private final int sampleSize;
+    private final LongAdder additions = new LongAdder();
+    private final AtomicBoolean halving = new AtomicBoolean();
+
+    FrequencySketch(int expectedEntries) {
+        int size = Integer.highestOneBit(Math.max(expectedEntries, 16) - 1) << 1;
+        this.table = new AtomicLongArray(size);
+        this.tableMask = size - 1;
+        this.sampleSize = 10 * Math.max(expectedEntries, 16);
+    }
+
+    int frequency(Object key) {
+        int hash = spread(key.hashCode());
+        int start = (hash & 3) << 2; // Cada fila usa un contador distinto dentro de su long
+        int frequency = 15;
+        for (int row = 0; row < 4; row++) {
+            int counter = (start + row) << 2;
+            frequency = Math.min(frequency, (int) ((table.get(indexOf(hash, row)) >>> counter) & 0xF));
+        }
+        return frequency;
+    }
+
+    void increment(Object key) {
+        int hash = spread(key.hashCode());
+        int start = (hash & 3) << 2;
+        boolean added = false;
+        for (int row = 0; row < 4; row++) {
+            added |= incrementAt(indexOf(hash, row), (start + row) << 2);
+        }
+        if (!added) {
+            return;
+        }
+        additions.increment();
+        if (ThreadLocalRandom.current().nextInt(SAMPLE_CHECK_INTERVAL) == 0
+                && additions.sum() >= sampleSize && halving.compareAndSet(false, true)) {
+            try {
+                halve();
+            } finally {
+                halving.set(false);
             }
-            File file = new File("." + fileName); // Archivos en el directorio actual
+        }
+    }
 
-            if (file.exists() && file.isFile()) {
-                fileHandler.serveFile(file, response); // Servir el archivo si existe
-            } else {
-                response.sendErrorResponse("404", "Not Found", "Archivo " + fileName + " no encontrado."); // 404 si no existe
+    // Suma 1 al contador si no está saturado en 15.
+    private boolean incrementAt(int index, int counter) {
+        long mask = 0xFL << counter;
+        while (true) {
+            long word = table.get(index);
+            if ((word & mask) == mask) {
+                return false;
+            }
+            if (table.compareAndSet(index, word, word + (1L << counter))) {
+                return true;
             }
-        } else {
-            response.sendErrorResponse("400", "Bad Request", "Este servidor solo soporta el método GET."); // 400 para otros métodos
         }
     }
-}
 
+    private void halve() {
+        for (int i = 0; i < table.length(); i++) {
+            long word;
+            do {
+                word = table.get(i);
+            } while (!table.compareAndSet(i, word, (word >>> 1) & RESET_MASK));
+        }
+        additions.add(-sampleSize / 2);
+    }
+
+    private int indexOf(int hash, int row) {
+        long h = (hash + SEEDS[row]) * SEEDS[row];
+        h += h >>> 32;
+        return (int) h & tableMask;
+    }
+
+    private static int spread(int x) {
+        x = ((x >>> 16) ^ x) * 0x45d9f3b;
+        x = ((x >>> 16) ^ x) * 0x45d9f3b;
+        return (x >>> 16) ^ x;
+    }
+}
 
 /**
- * Clase para representar y analizar una solicitud HTTP.
- * Responsable de parsear la línea de solicitud y los encabezados.
+ * Compara las políticas de la caché repitiendo un tráfico fuera del servidor: cuenta
+ * aciertos de una caché LRU de N entradas con cada política de admisión.
+ * Uso: java CachePolicySimulator [capacidad] [archivo]. El archivo tiene una solicitud
+ * por línea (sirve el registro del servidor: se toma el primer token que empieza con
+ * "/"); sin archivo se genera tráfico sesgado (Zipf) mezclado con pedidos únicos.
  */
-class HttpRequest {
-    private final BufferedReader bufferedReader;
-    private String method;
-    private String fileName;
-    private String httpVersion;
+final class CachePolicySimulator {
 
-    public HttpRequest(BufferedReader br) {
-        this.bufferedReader = br;
+    private CachePolicySimulator() {
     }
 
-    public void parseRequest() throws IOException {
-        String requestLine = bufferedReader.readLine();
-        if (requestLine == null) {
-            throw new IOException("Solicitud HTTP vacía o conexión cerrada prematuramente.");
+    public static void main(String[] args) throws IOException {
+        int capacity = args.length > 0 ? Integer.parseInt(args[0]) : 100;
+        List<String> trace = args.length > 1 ? readTrace(Paths.get(args[1])) : syntheticTrace(200_000);
+        System.out.printf("%,d solicitudes, %d entradas%n", trace.size(), capacity);
+        for (String policy : new String[] {"lru", "tinylfu"}) {
+            double hitRatio = replay(trace, capacity, CachePolicy.create(policy, capacity));
+            System.out.printf("  %-8s tasa-aciertos=%.1f%%%n", policy, 100 * hitRatio);
         }
-        System.out.println("\nLínea de Solicitud Recibida: " + requestLine); // Para debugging
+    }
 
-        StringTokenizer tokenizer = new StringTokenizer(requestLine);
-        if (tokenizer.countTokens() >= 2) {
-            method = tokenizer.nextToken();
-            fileName = tokenizer.nextToken();
-            if (tokenizer.hasMoreTokens()) {
-                httpVersion = tokenizer.nextToken();
-            } else {
-                httpVersion = "HTTP/1.0"; // Asumir HTTP/1.0 si no se especifica
+    static double replay(List<String> trace, int capacity, CachePolicy policy) {
+        LinkedHashMap<String, Boolean> cache = new LinkedHashMap<>(capacity * 2, 0.75f, true);
+        long hits = 0;
+        for (String key : trace) {
+            policy.recordAccess(key);
+            if (cache.get(key) != null) {
+                hits++;
+                continue;
             }
-        } else {
-            throw new IOException("Solicitud HTTP malformada: línea de solicitud incompleta.");
+            if (cache.size() >= capacity) {
+                String victim = cache.keySet().iterator().next();
+                if (!policy.admit(key, victim)) {
+                    continue;
+                }
+                cache.remove(victim);
+            }
+            cache.put(key, Boolean.TRUE);
         }
+        return trace.isEmpty() ? 0 : (double) hits / trace.size();
     }
 
-    public void printRequestContent() throws IOException {
-        System.out.println("=====================Solicitud HTTP Recibida=====================");
-        System.out.println(getMethod() + " " + getFileName() + " " + getHttpVersion());
+    private static List<String> readTrace(Path file) throws IOException {
+        List<String> trace = new ArrayList<>();
+        for (String line : Files.readAllLines(file, StandardCharsets.ISO_8859_1)) {
+            StringTokenizer tokenizer = new StringTokenizer(line);
+            while (tokenizer.hasMoreTokens()) {
+                String token = tokenizer.nextToken();
+                if (token.startsWith("/")) {
+                    trace.add(token);
+                    break;
+                }
+            }
+        }
+        return trace;
+    }
 
-        String headerLine;
-        while ((headerLine = bufferedReader.readLine()) != null && headerLine.length() != 0) {
-            System.out.println(headerLine);
+    // 1000 archivos con popularidad Zipf (s = 0.9) y un 30% de pedidos que no se repiten.
+    private static List<String> syntheticTrace(int requests) {
+        int files = 1000;
+        double[] cumulative = new double[files];
+        double total = 0;
+        for (int i = 0; i < files; i++) {
+            total += 1 / Math.pow(i + 1, 0.9);
+            cumulative[i] = total;
         }
-        System.out.println("=========================Fin de Solicitud=========================");
+        Random random = new Random(42);
+        List<String> trace = new ArrayList<>(requests);
+        for (int i = 0; i < requests; i++) {
+            if (random.nextDouble() < 0.3) {
+                trace.add("/unico-" + i + ".html");
+                continue;
+            }
+            int index = Arrays.binarySearch(cumulative, random.nextDouble() * total);
+            trace.add("/archivo-" + (index < 0 ? -index - 1 : index) + ".html");
+        }
+        return trace;
     }
+}
 
+/**
+ * Comprueba que la caché fuera del heap devuelve sus bloques cuando un archivo se borra
+ * entre la carga y la solicitud: el original (la variante comprimida sale del bloque) o
+ * su precomprimido (se envía el original). Al final, con todo borrado, el asignador no
+ * debe tener bytes en uso. Uso: java OffHeapLeaseCheck, desde el directorio de los
+ * recursos (crea y borra un directorio temporal ahí).
+ */
+final class OffHeapLeaseCheck {
+    private static final long REVALIDATE_MILLIS = 1000;
+    private static final String[] NAMES = {"a.txt", "b.txt", "c.txt"};
 
-    public String getMethod() {
-        return method;
+    private OffHeapLeaseCheck() {
     }
 
-    public String getFileName() {
-        return fileName;
+    public static void main(String[] args) throws Exception {
+        Path dir = Files.createTempDirectory(Paths.get("."), "comprobacion-offheap-");
+        SlabAllocator allocator = new SlabAllocator(4L * SlabAllocator.SLAB_SIZE);
+        OffHeapFileCache offHeapCache = new OffHeapFileCache(allocator, REVALIDATE_MILLIS);
+        HttpFileHandler handler = new HttpFileHandler("copia", MimeTypeRegistry.load(Paths.get("mime.types")),
+                null, null, offHeapCache, new CompressedVariantCache(1, 1024 * 1024), true, REVALIDATE_MILLIS, 0);
+        try {
+            byte[] text = "texto que se repite ".repeat(200).getBytes(StandardCharsets.US_ASCII);
+            for (String name : NAMES) {
+                Files.write(dir.resolve(name), text);
+            }
+            for (String name : new String[] {"b.txt", "c.txt"}) {
+                try (OutputStream out = new GZIPOutputStream(Files.newOutputStream(dir.resolve(name + ".gz")))) {
+                    out.write(text);
+                }
+            }
+            requestAll(handler, dir); // Carga la caché
+
+            // Dentro del intervalo de revalidación: las entradas siguen vigentes
+            Files.delete(dir.resolve("a.txt"));
+            Files.delete(dir.resolve("b.txt.gz"));
+            Files.delete(dir.resolve("c.txt"));
+            requestAll(handler, dir);
+
+            // Ya vencido: al revalidar, las entradas de los archivos borrados se descartan
+            Files.delete(dir.resolve("b.txt"));
+            Thread.sleep(REVALIDATE_MILLIS + 100);
+            requestAll(handler, dir);
+
+            long used = allocator.usedBytes();
+            System.out.println(offHeapCache.stats());
+            if (used != 0) {
+                System.out.println("FALLA: quedaron " + used + " bytes en uso con todos los archivos borrados");
+                System.exit(1);
+            }
+            System.out.println("OK: todos los bloques volvieron al asignador");
+        } finally {
+            try (Stream<Path> files = Files.list(dir)) {
+                for (Path file : (Iterable<Path>) files::iterator) {
+                    Files.delete(file);
+                }
+            }
+            Files.delete(dir);
+        }
     }
 
-    public String getHttpVersion() {
-        return httpVersion;
+    // Cada archivo con y sin gzip, descartando las respuestas como al cerrar la conexión.
+    private static void requestAll(HttpFileHandler handler, Path dir) throws IOException {
+        for (String name : NAMES) {
+            String fileName = "/" + dir.getFileName() + "/" + name;
+            for (String acceptEncoding : new String[] {"Accept-Encoding: gzip\r\n", ""}) {
+                String text = "GET " + fileName + " HTTP/1.1\r\nHost: localhost\r\n" + acceptEncoding + "\r\n";
+                HttpRequest request = HttpRequest.parse(ByteBuffer.wrap(text.getBytes(StandardCharsets.US_ASCII)));
+                OutputQueue output = new OutputQueue();
+                try {
+                    handler.serveFromCache(request, fileName, new HttpResponse(output));
+                } catch (NoSuchFileException e) {
+                    // El servidor responde 404; aquí solo importa que no quede ningún bloque tomado
+                } finally {
+                    output.clear();
+                }
+            }
+        }
     }
 }
 
 
 /**
- * Clase para construir y enviar respuestas HTTP.
- * Encapsula la lógica para crear líneas de estado, encabezados y cuerpos de respuesta.
+ * Nivel de la caché de contenido fuera del heap: el contenido de cada archivo vive en un
+ * bloque de un SlabAllocator (memoria directa, invisible para el GC) y en el heap solo
+ * queda el índice de rutas. Las respuestas escriben vistas de esos bloques directamente
+ * al socket. Cada entrada lleva un contador de referencias: la caché tiene una y cada
+ * envío en curso otra, así que un bloque desalojado o invalidado no se reutiliza hasta
+ * que terminaron de escribirse todas las respuestas que lo usaban.
  */
-class HttpResponse {
-    private final DataOutputStream outputStream;
-    private static final String CRLF = "\r\n";
+class OffHeapFileCache {
+    // Entradas que una carga puede desalojar para hacer lugar; si no alcanza, el archivo se
+    // sirve sin cachear en vez de vaciar el nivel entero.
+    private static final int MAX_EVICTIONS_PER_LOAD = 8;
+
+    private final SlabAllocator allocator;
+    private final long revalidateMillis;
+    private final ConcurrentHashMap<Path, OffHeapFile> entries = new ConcurrentHashMap<>();
+    private final AtomicLong clock = new AtomicLong();
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+    private final LongAdder invalidations = new LongAdder();
+    private final LongAdder rejected = new LongAdder();
 
-    public HttpResponse(DataOutputStream os) {
-        this.outputStream = os;
+    public OffHeapFileCache(SlabAllocator allocator, long revalidateMillis) {
+        this.allocator = allocator;
+        this.revalidateMillis = revalidateMillis;
     }
 
-    public void sendFileResponse(String contentType, byte[] fileData) throws IOException {
-        sendStatusLine("200", "OK");
-        sendContentTypeHeader(contentType);
-        sendConnectionCloseHeader();
-        sendContentLengthHeader(fileData.length);
-        sendEndOfHeaders();
-        sendResponseBody(fileData);
+    /**
+     * Entrada vigente para la ruta, ya retenida para quien llama (que debe liberarla o
+     * entregarla a la cola de salida). Devuelve null si el archivo no existe, no es un
+     * archivo regular, no entra en un bloque o no se pudo hacer lugar.
+     */
+    public OffHeapFile get(Path path) throws IOException {
+        long now = System.currentTimeMillis();
+        OffHeapFile entry = entries.get(path);
+        if (entry != null) {
+            if (now - entry.validatedAt >= revalidateMillis) {
+                if (!entry.matches(readAttributes(path))) {
+                    invalidations.increment();
+                    remove(path, entry);
+                    return load(path, now);
+                }
+                entry.validatedAt = now;
+            }
+            if (entry.retain()) {
+                entry.lastAccess = clock.incrementAndGet();
+                hits.increment();
+                return entry;
+            }
+            // Se desalojó entre la búsqueda y la retención: se vuelve a cargar
+        }
+        return load(path, now);
     }
 
-    public void sendErrorResponse(String statusCode, String statusText, String messageBody) throws IOException {
-        sendStatusLine(statusCode, statusText);
-        sendContentTypeHeader("text/html");
-        sendConnectionCloseHeader();
-        sendEndOfHeaders();
-        sendResponseBody(generateErrorHtml(statusCode, statusText, messageBody).getBytes());
+    public String stats() {
+        long hitCount = hits.sum();
+        long lookups = hitCount + misses.sum();
+        return "entradas=" + entries.size()
+                + " " + allocator.stats()
+                + " aciertos=" + hitCount
+                + " fallos=" + misses.sum()
+                + " desalojos=" + evictions.sum()
+                + " invalidaciones=" + invalidations.sum()
+                + " sin-lugar=" + rejected.sum()
+                + " tasa-aciertos=" + (lookups == 0 ? "0" : String.format("%.1f%%", 100.0 * hitCount / lookups));
     }
 
+    private OffHeapFile load(Path path, long now) throws IOException {
+        misses.increment();
+        BasicFileAttributes attributes = readAttributes(path);
+        if (attributes == null || !attributes.isRegularFile() || attributes.size() > SlabAllocator.SLAB_SIZE) {
+            return null;
+        }
+        int size = (int) attributes.size();
+        SlabAllocator.Chunk chunk = allocate(size);
+        if (chunk == null) {
+            rejected.increment();
+            return null;
+        }
+
+        // Se lee del archivo directamente al bloque, sin pasar por el heap.
+        ByteBuffer target = chunk.buffer.duplicate().limit(size);
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            while (target.hasRemaining()) {
+                if (channel.read(target) < 0) {
+                    allocator.free(chunk); // El archivo se acortó: se carga en el próximo intento
+                    return null;
+                }
+            }
+        } catch (IOException e) {
+            allocator.free(chunk);
+            throw e;
+        }
 
-    private void sendStatusLine(String statusCode, String statusText) throws IOException {
-        outputStream.writeBytes("HTTP/1.0 " + statusCode + " " + statusText + CRLF);
+        OffHeapFile loaded = new OffHeapFile(allocator, chunk, size, attributes.lastModifiedTime(), now);
+        loaded.retain();
+        loaded.lastAccess = clock.incrementAndGet();
+        OffHeapFile previous = entries.put(path, loaded);
+        if (previous != null) {
+            previous.release();
+        }
+        return loaded;
     }
 
-    private void sendContentTypeHeader(String contentType) throws IOException {
-        outputStream.writeBytes("Content-Type: " + contentType + CRLF);
+    // Pide un bloque; si no hay, desaloja (a lo sumo MAX_EVICTIONS_PER_LOAD) las entradas
+    // menos usadas de la misma clase de tamaño, o vacía el slab de otra clase más cercano a
+    // quedar libre. Null si ninguna de las dos cosas alcanza.
+    private SlabAllocator.Chunk allocate(int size) {
+        int sizeClass = SlabAllocator.sizeClass(size);
+        SlabAllocator.Chunk chunk = allocator.allocate(sizeClass);
+        for (int i = 0; chunk == null && i < MAX_EVICTIONS_PER_LOAD && evictOldest(sizeClass); i++) {
+            chunk = allocator.allocate(sizeClass);
+        }
+        if (chunk == null && reclaimSlab(sizeClass)) {
+            chunk = allocator.allocate(sizeClass);
+        }
+        return chunk;
     }
 
-    private void sendContentLengthHeader(int contentLength) throws IOException {
-        outputStream.writeBytes("Content-Length: " + contentLength + CRLF);
+    // Desaloja la entrada usada hace más tiempo de la clase dada entre las que no se están
+    // enviando, así su bloque vuelve enseguida al asignador. False si no hay ninguna.
+    private boolean evictOldest(int sizeClass) {
+        Map.Entry<Path, OffHeapFile> oldest = null;
+        for (Map.Entry<Path, OffHeapFile> entry : entries.entrySet()) {
+            OffHeapFile file = entry.getValue();
+            if (file.sizeClass() == sizeClass && file.isIdle()
+                    && (oldest == null || file.lastAccess < oldest.getValue().lastAccess)) {
+                oldest = entry;
+            }
+        }
+        if (oldest == null) {
+            return false;
+        }
+        evict(oldest);
+        return true;
     }
 
-    private void sendConnectionCloseHeader() throws IOException {
-        outputStream.writeBytes("Connection: close" + CRLF);
+    // Vacía el slab de otra clase con menos bloques en uso (hasta MAX_EVICTIONS_PER_LOAD),
+    // si todos son entradas que no se están enviando; el asignador lo parte en la clase pedida.
+    private boolean reclaimSlab(int sizeClass) {
+        for (SlabAllocator.Slab slab : allocator.reclaimCandidates(sizeClass, MAX_EVICTIONS_PER_LOAD)) {
+            List<Map.Entry<Path, OffHeapFile>> occupants = new ArrayList<>();
+            boolean idle = true;
+            for (Map.Entry<Path, OffHeapFile> entry : entries.entrySet()) {
+                if (entry.getValue().slab() == slab) {
+                    occupants.add(entry);
+                    idle &= entry.getValue().isIdle();
+                }
+            }
+            if (idle && !occupants.isEmpty()) {
+                occupants.forEach(this::evict);
+                return true;
+            }
+        }
+        return false;
     }
 
-    private void sendEndOfHeaders() throws IOException {
-        outputStream.writeBytes(CRLF);
+    private void evict(Map.Entry<Path, OffHeapFile> entry) {
+        if (entries.remove(entry.getKey(), entry.getValue())) {
+            entry.getValue().release();
+            evictions.increment();
+        }
     }
 
-    private void sendResponseBody(byte[] body) throws IOException {
-        outputStream.write(body, 0, body.length);
+    private void remove(Path path, OffHeapFile entry) {
+        if (entries.remove(path, entry)) {
+            entry.release();
+        }
     }
 
-    private String generateErrorHtml(String statusCode, String statusText, String message) {
-        return "<HTML><HEAD><TITLE>" + statusCode + " " + statusText + "</TITLE></HEAD><BODY><H1>" + statusCode + " " + statusText + "</H1><P>" + message + "</P></BODY></HTML>";
+    private static BasicFileAttributes readAttributes(Path path) throws IOException {
+        try {
+            return Files.readAttributes(path, BasicFileAttributes.class);
+        } catch (NoSuchFileException e) {
+            return null;
+        }
     }
 }
 
+/**
+ * Archivo de la caché fuera del heap: su bloque de memoria directa, la versión (tamaño y
+ * fecha) que se leyó y el contador de referencias que decide cuándo se devuelve el bloque.
+ */
+class OffHeapFile {
+    private final SlabAllocator allocator;
+    private final SlabAllocator.Chunk chunk;
+    private final int length;
+    private final FileTime lastModified;
+    // Empieza en 1: la referencia de la caché. Al llegar a 0 el bloque vuelve al asignador.
+    private final AtomicInteger references = new AtomicInteger(1);
+    volatile long validatedAt;
+    volatile long lastAccess;
+    // Tipo de contenido y validadores, resueltos al primer envío.
+    volatile FileMetadata metadata;
+
+    OffHeapFile(SlabAllocator allocator, SlabAllocator.Chunk chunk, int length, FileTime lastModified,
+                long validatedAt) {
+        this.allocator = allocator;
+        this.chunk = chunk;
+        this.length = length;
+        this.lastModified = lastModified;
+        this.validatedAt = validatedAt;
+    }
+
+    public int length() {
+        return length;
+    }
+
+    public FileTime getLastModified() {
+        return lastModified;
+    }
+
+    int sizeClass() {
+        return chunk.sizeClass;
+    }
+
+    SlabAllocator.Slab slab() {
+        return chunk.slab;
+    }
+
+    /** Solo la caché tiene referencia: ningún envío en curso usa el bloque. */
+    boolean isIdle() {
+        return references.get() == 1;
+    }
+
+    /** Vista de solo lectura del contenido; válida mientras se tenga una referencia. */
+    public ByteBuffer content() {
+        return chunk.buffer.slice(0, length).asReadOnlyBuffer();
+    }
+
+    /** Toma una referencia; false si la entrada ya se liberó del todo. */
+    boolean retain() {
+        while (true) {
+            int current = references.get();
+            if (current == 0) {
+                return false;
+            }
+            if (references.compareAndSet(current, current + 1)) {
+                return true;
+            }
+        }
+    }
+
+    public void release() {
+        if (references.decrementAndGet() == 0) {
+            allocator.free(chunk);
+        }
+    }
+
+    boolean matches(BasicFileAttributes attributes) {
+        return attributes != null && attributes.isRegularFile()
+                && attributes.size() == length && attributes.lastModifiedTime().equals(lastModified);
+    }
+}
 
 /**
- * Clase para manejar la lógica de servir archivos estáticos.
- * Incluye la determinación del tipo de contenido y el envío del archivo como respuesta.
+ * Asignador de memoria directa por slabs de 1 MB, al estilo de memcached: cada slab se
+ * reserva una sola vez con allocateDirect (hasta el presupuesto) y se parte en bloques de
+ * una clase de tamaño (potencias de dos desde 4 KB hasta 1 MB). Un archivo ocupa un bloque
+ * de la menor clase que lo contiene, así que el desperdicio es menor a la mitad del bloque.
+ * Un slab cuyos bloques están todos libres puede reasignarse a otra clase.
  */
-class HttpFileHandler {
+final class SlabAllocator {
+    static final int SLAB_SIZE = 1024 * 1024;
+    private static final int MIN_CHUNK_SHIFT = 12; // 4 KB
+    private static final int CLASS_COUNT = Integer.numberOfTrailingZeros(SLAB_SIZE) - MIN_CHUNK_SHIFT + 1;
 
-    public void serveFile(File file, HttpResponse response) throws Exception {
-        byte[] fileData = readFileData(file);
-        String contentType = determineContentType(file.getName());
-        response.sendFileResponse(contentType, fileData);
+    private final int maxSlabs;
+    private final List<Slab> slabs = new ArrayList<>();
+    private final List<ArrayDeque<Chunk>> freeChunks = new ArrayList<>();
+    private long usedBytes;
+
+    public SlabAllocator(long budgetBytes) {
+        this.maxSlabs = (int) Math.max(1, budgetBytes / SLAB_SIZE);
+        for (int i = 0; i < CLASS_COUNT; i++) {
+            freeChunks.add(new ArrayDeque<>());
+        }
+    }
+
+    /** Clase de tamaño del menor bloque donde entran size bytes (size <= SLAB_SIZE). */
+    static int sizeClass(int size) {
+        int shift = 32 - Integer.numberOfLeadingZeros(Math.max(size, 1) - 1);
+        return Math.max(shift, MIN_CHUNK_SHIFT) - MIN_CHUNK_SHIFT;
+    }
+
+    /** Bloque libre de la clase, o null si no queda lugar sin desalojar. */
+    synchronized Chunk allocate(int sizeClass) {
+        ArrayDeque<Chunk> free = freeChunks.get(sizeClass);
+        if (free.isEmpty() && !carveSlab(sizeClass)) {
+            return null;
+        }
+        Chunk chunk = free.pop();
+        chunk.slab.usedChunks++;
+        usedBytes += chunk.buffer.capacity();
+        return chunk;
+    }
+
+    synchronized void free(Chunk chunk) {
+        chunk.slab.usedChunks--;
+        usedBytes -= chunk.buffer.capacity();
+        freeChunks.get(chunk.sizeClass).push(chunk);
     }
 
+    /**
+     * Slabs de otras clases con entre 1 y maxUsed bloques en uso, del más vacío al más
+     * lleno: los que conviene vaciar para reasignarlos a sizeClass.
+     */
+    synchronized List<Slab> reclaimCandidates(int sizeClass, int maxUsed) {
+        List<Slab> candidates = new ArrayList<>();
+        for (Slab slab : slabs) {
+            if (slab.sizeClass != sizeClass && slab.usedChunks > 0 && slab.usedChunks <= maxUsed) {
+                candidates.add(slab);
+            }
+        }
+        candidates.sort(Comparator.comparingInt(slab -> slab.usedChunks));
+        return candidates;
+    }
+
+    synchronized long usedBytes() {
+        return usedBytes;
+    }
 
-    private byte[] readFileData(File file) throws IOException {
-        return Files.readAllBytes(Paths.get(file.getPath()));
+    synchronized String stats() {
+        return "slabs=" + slabs.size() + "/" + maxSlabs + " bytes-en-uso=" + usedBytes;
     }
 
-    private String determineContentType(String fileName) {
-        if (fileName.endsWith(".htm") || fileName.endsWith(".html")) {
-            return "text/html";
+    // Parte un slab nuevo, o uno vacío de otra clase, en bloques de la clase pedida.
+    private boolean carveSlab(int sizeClass) {
+        Slab slab = null;
+        if (slabs.size() < maxSlabs) {
+            slab = new Slab(ByteBuffer.allocateDirect(SLAB_SIZE));
+            slabs.add(slab);
+        } else {
+            for (Slab candidate : slabs) {
+                if (candidate.usedChunks == 0 && candidate.sizeClass != sizeClass) {
+                    slab = candidate;
+                    freeChunks.get(slab.sizeClass).removeIf(chunk -> chunk.slab == candidate);
+                    break;
+                }
+            }
+            if (slab == null) {
+                return false;
+            }
         }
-        if (fileName.endsWith(".gif")) {
-            return "image/gif";
+        slab.sizeClass = sizeClass;
+        int chunkSize = 1 << (sizeClass + MIN_CHUNK_SHIFT);
+        ArrayDeque<Chunk> free = freeChunks.get(sizeClass);
+        for (int offset = 0; offset < SLAB_SIZE; offset += chunkSize) {
+            free.add(new Chunk(slab, slab.memory.slice(offset, chunkSize), sizeClass));
         }
-        if (fileName.endsWith(".jpeg") || fileName.endsWith(".jpg")) {
-            return "image/jpeg";
+        return true;
+    }
+
+    static final class Slab {
+        final ByteBuffer memory;
+        int sizeClass = -1;
+        int usedChunks;
+
+        Slab(ByteBuffer memory) {
+            this.memory = memory;
+        }
+    }
+
+    /** Bloque de un slab: una vista de capacidad fija sobre su memoria directa. */
+    static final class Chunk {
+        final Slab slab;
+        final ByteBuffer buffer;
+        final int sizeClass;
+
+        Chunk(Slab slab, ByteBuffer buffer, int sizeClass) {
+            this.slab = slab;
+            this.buffer = buffer;
+            this.sizeClass = sizeClass;
         }
-        return "application/octet-stream"; // Tipo por defecto
     }
-}
\ No newline at end of file
+}